@@ -33,6 +33,10 @@ import java.security.Security;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -50,9 +54,12 @@ import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.protobuf.CodedOutputStream;
 
+import edu.rice.batchsig.BatchPolicy;
 import edu.rice.batchsig.HistoryQueue;
 import edu.rice.batchsig.IMessage;
 import edu.rice.batchsig.MerkleQueue;
+import edu.rice.batchsig.PipelinableQueue;
+import edu.rice.batchsig.PipelinedQueue;
 import edu.rice.batchsig.Message;
 import edu.rice.batchsig.OMessage;
 import edu.rice.batchsig.ProcessQueue;
@@ -61,14 +68,15 @@ import edu.rice.batchsig.ShutdownableThread;
 import edu.rice.batchsig.SignaturePrimitives;
 import edu.rice.batchsig.SimpleQueue;
 import edu.rice.batchsig.SuspendableProcessQueue;
+import edu.rice.batchsig.VerifiedRootCache;
 import edu.rice.batchsig.VerifyQueue;
 import edu.rice.batchsig.bench.log.BuildLogForVerificationBench;
 import edu.rice.batchsig.bench.log.LogonLogoffEvent;
 import edu.rice.batchsig.bench.log.MessageEvent;
 import edu.rice.batchsig.bench.log.MultiplexedPublicKeyPrims;
+import edu.rice.batchsig.bench.log.PartitionedVerifyLazilyQueue;
 import edu.rice.batchsig.bench.log.ReplayAndQueueMessagesForSigningThread;
 import edu.rice.batchsig.bench.log.ReplaySavedMessagesRealtimeThread;
-import edu.rice.batchsig.bench.log.VerifyHisttreeLazilyQueue;
 import edu.rice.batchsig.lazy.VerifyHisttreeLazily;
 import edu.rice.batchsig.lazy.VerifyLazily;
 import edu.rice.batchsig.lazy.VerifyMerkleLazily;
@@ -106,7 +114,14 @@ public class BenchSigner {
 
 	
 	private void doCommon(SuspendableProcessQueue<? extends Message> queue, int sleepTime, ShutdownableThread makeThread) {
-		ProcessQueueThread processThread = new ProcessQueueThread(queue, 0);
+		ProcessQueueThread processThread;
+		if (commands.hasOption("maxwait"))
+			processThread = new ProcessQueueThread(queue, new BatchPolicy(
+					Integer.parseInt(commands.getOptionValue("maxwait")),
+					Integer.parseInt(commands.getOptionValue("minbatch","1")),
+					Integer.parseInt(commands.getOptionValue("maxbatch","100000"))));
+		else
+			processThread = new ProcessQueueThread(queue, 0);
 		makeThread.start();
 		processThread.start();
 		try {
@@ -237,6 +252,14 @@ public class BenchSigner {
 	}
 
 
+	/** Set the proof encoding of the signing queue, and wrap it in a pipeline, if requested. */
+	<Q extends QueueBase<OMessage> & PipelinableQueue> SuspendableProcessQueue<OMessage> maybePipeline(Q queue) {
+		queue.setCompactProofs(commands.hasOption("compact"));
+		if (commands.hasOption("pipeline"))
+			return new PipelinedQueue(queue);
+		return queue;
+	}
+
 	interface CallBack {
 		void run(int rate);
 	}	
@@ -264,6 +287,16 @@ public class BenchSigner {
 				.addOption(OptionBuilder.withDescription("Sign each message with merkle tree").create("merkle"))
 				.addOption(OptionBuilder.withDescription("Sign each message with history tree").create("history")))
 		.addOption(OptionBuilder.withDescription("Do longer duration experiments").create("big"))
+		.addOption(OptionBuilder.withDescription("Cut batches adaptively, so messages wait at most this many milliseconds").hasArg().create("maxwait"))
+		.addOption(OptionBuilder.withDescription("Smallest batch to cut before the maxwait deadline").hasArg().create("minbatch"))
+		.addOption(OptionBuilder.withDescription("Largest batch to cut with maxwait").hasArg().create("maxbatch"))
+		.addOption(OptionBuilder.withDescription("Send proofs in the compact positional encoding").create("compact"))
+		.addOption(OptionBuilder.withDescription("Send one shared proof for each recipient's messages in a history tree batch").create("bundle"))
+		.addOption(OptionBuilder.withDescription("Sign batches in a pipeline, overlapping tree building, signing and delivery").create("pipeline"))
+		.addOption(OptionBuilder.withDescription("Verify independent signers in parallel on this many threads").hasArg().create("verifythreads"))
+		.addOption(OptionBuilder.withDescription("When lazily verifying a trace, force each message within this many milliseconds (0 for no limit)").hasArg().create("latencybound"))
+		.addOption(OptionBuilder.withDescription("When lazily verifying a trace, partition the signers over this many threads").hasArg().create("partitions"))
+		.addOption(OptionBuilder.withDescription("When lazily verifying a trace with -history, verify the newest root of each tree in the background on this many low priority threads").hasArg().create("speculate"))
 		//.addOption(OptionBuilder.withDescription("Trace to use").hasArg().create("trace"))
 		.addOption(OptionBuilder.withDescription("Number of senders to generate in verifytrace (prime number, not 43 or 37)").hasArg().create("verifytracesenders"))
 		.addOption(OptionBuilder.withDescription("name of event trace").hasArg().create("eventtrace"))
@@ -340,10 +373,14 @@ public class BenchSigner {
 		// Create queues.
 		if (commands.hasOption("history")) {
 			isBatch = true;
-			queuefn=new Function<String,SuspendableProcessQueue<OMessage>>(){public SuspendableProcessQueue<OMessage> apply(String signer_id) {return new HistoryQueue(setupCipher(signer_id));}};
+			queuefn=new Function<String,SuspendableProcessQueue<OMessage>>(){public SuspendableProcessQueue<OMessage> apply(String signer_id) {
+				HistoryQueue queue = new HistoryQueue(setupCipher(signer_id));
+				queue.setBundleProofs(commands.hasOption("bundle"));
+				return maybePipeline(queue);
+			}};
 		} else if (commands.hasOption("merkle")) {
 			isBatch = true;
-			queuefn=new Function<String,SuspendableProcessQueue<OMessage>>(){public SuspendableProcessQueue<OMessage> apply(String signer_id) {return new MerkleQueue(setupCipher(signer_id));}};
+			queuefn=new Function<String,SuspendableProcessQueue<OMessage>>(){public SuspendableProcessQueue<OMessage> apply(String signer_id) {return maybePipeline(new MerkleQueue(setupCipher(signer_id)));}};
 		} else if (commands.hasOption("simple")) {
 			isBatch = false;
 			queuefn=new Function<String,SuspendableProcessQueue<OMessage>>(){public SuspendableProcessQueue<OMessage> apply(String signer_id) {return new SimpleQueue(setupCipher(signer_id));}};
@@ -374,15 +411,37 @@ public class BenchSigner {
 			throw new Error("Need to define an input file");
 		final FileInputStream fileinput = new FileInputStream(commands.getOptionValue("input"));
 		MultiplexedPublicKeyPrims prims = (MultiplexedPublicKeyPrims) setupCipher(null);
-		VerifyLazily treeverifier;
-		if (commands.hasOption("merkle"))
-			treeverifier = new VerifyMerkleLazily(prims);
-		else if (commands.hasOption("history"))
-			treeverifier = new VerifyHisttreeLazily(prims);
-		else 
-			throw new Error("Need -merkle or -history");
+		VerifiedRootCache rootcache = new VerifiedRootCache(VerifyQueue.ROOT_CACHE_SIZE);
+		long latencybound = Long.parseLong(commands.getOptionValue("latencybound", "0"));
+		ExecutorService speculator = null;
+		if (commands.hasOption("speculate"))
+			speculator = Executors.newFixedThreadPool(Integer.parseInt(commands.getOptionValue("speculate")), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					// Only use otherwise idle cores.
+					Thread out = new Thread(r);
+					out.setDaemon(true);
+					out.setPriority(Thread.MIN_PRIORITY);
+					return out;
+				}
+			});
+		VerifyLazily treeverifiers[] = new VerifyLazily[Integer.parseInt(commands.getOptionValue("partitions", "1"))];
+		for (int i = 0; i < treeverifiers.length; i++) {
+			if (commands.hasOption("merkle")) {
+				VerifyMerkleLazily verifier = new VerifyMerkleLazily(prims);
+				verifier.setRootCache(rootcache);
+				verifier.setLatencyBound(latencybound);
+				treeverifiers[i] = verifier;
+			} else if (commands.hasOption("history")) {
+				VerifyHisttreeLazily verifier = new VerifyHisttreeLazily(prims);
+				verifier.setRootCache(rootcache);
+				verifier.setLatencyBound(latencybound);
+				verifier.setSpeculator(speculator);
+				treeverifiers[i] = verifier;
+			} else 
+				throw new Error("Need -merkle or -history");
+		}
 		
-		VerifyHisttreeLazilyQueue processThread = new VerifyHisttreeLazilyQueue(treeverifier);
+		PartitionedVerifyLazilyQueue processThread = new PartitionedVerifyLazilyQueue(treeverifiers);
 		ReplaySavedMessagesRealtimeThread makeThread = new ReplaySavedMessagesRealtimeThread(processThread,fileinput,MAXQUEUE);
 		//hotSpotVerifying(fileinput);
 		makeThread.setup(prims); // Pre-load all of the crypto keys.
@@ -396,7 +455,10 @@ public class BenchSigner {
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}		
+		if (speculator != null)
+			speculator.shutdownNow();
 		Tracker.singleton.print(String.format("Trace"));
+		System.out.println(rootcache);
 	}
 
 
@@ -500,13 +562,17 @@ public class BenchSigner {
 	private void handleVerifying(final int time) throws FileNotFoundException,
 			Error, InterruptedException, InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException {
 		String signer_id = commands.getOptionValue("signerid","Host0");
-		iqueue = new VerifyQueue(setupCipher(signer_id));
+		VerifyQueue verifyqueue = new VerifyQueue(setupCipher(signer_id));
+		if (commands.hasOption("verifythreads"))
+			verifyqueue.setWorkerPool(new ForkJoinPool(Integer.parseInt(commands.getOptionValue("verifythreads"))));
+		iqueue = verifyqueue;
 		if (commands.getOptionValue("input") == null)
 			throw new Error("Need to define an input file");
 		final FileInputStream fileinput = new FileInputStream(commands.getOptionValue("input"));
 
 		hotSpotVerifying(fileinput);
 		doBenchMany(new CallBack(){public void run(int rate) {doVerifyingRun(fileinput,rate,1,time);}});
+		System.out.println(((VerifyQueue) iqueue).getRootCache());
 		return; // Done with handling verification.
 	}
 
@@ -21,6 +21,7 @@ package edu.rice.batchsig.bench;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import edu.rice.batchsig.BatchPolicy;
 import edu.rice.batchsig.Message;
 import edu.rice.batchsig.OMessage;
 import edu.rice.batchsig.ProcessQueue;
@@ -33,6 +34,8 @@ import edu.rice.batchsig.SuspendableProcessQueue;
 public class ProcessQueueThread extends ShutdownableThread {
 	private int epochlength;
 	private SuspendableProcessQueue<? extends Message> signqueue;
+	/** If not null, decides when to cut each batch instead of the fixed epoch. */
+	private BatchPolicy policy = null;
 		
 	ProcessQueueThread(SuspendableProcessQueue<? extends Message> signqueue, int epochtime) {
 		this.setName("ProcessQueue");
@@ -41,10 +44,23 @@ public class ProcessQueueThread extends ShutdownableThread {
 		this.signqueue = signqueue;
 		this.epochlength = epochtime;
 	}
+
+	/** Cut batches when the policy says to, rather than once an epoch. */
+	ProcessQueueThread(SuspendableProcessQueue<? extends Message> signqueue, BatchPolicy policy) {
+		this(signqueue, 0);
+		this.policy = policy;
+	}
 	
 	
 	@Override
 	public void run() {
+		while (policy != null && !isShuttingdown()) {
+			policy.awaitBatch(signqueue);
+			long start = System.nanoTime();
+			int size = signqueue.peekSize();
+			signqueue.process();
+			policy.recordBatch(size, start, System.nanoTime());
+		}
 		while (!isShuttingdown()) {
 			//System.out.println("SigningLoop");
 			long epochstart = System.currentTimeMillis();
@@ -193,8 +193,9 @@ public class PublicKeyPrims implements SignaturePrimitives {
 		}
 	}
 
+	/** Synchronized, as the verifier and cache are shared by every thread verifying for this signer. */
 	@Override
-	public boolean verify(byte[] data, TreeSigBlob sig) {
+	public synchronized boolean verify(byte[] data, TreeSigBlob sig) {
 		if (sig.getSignatureAlgorithm() != sigalgo) {
 			System.out.println("Info: Mismatched signature algorithms");
 			return false;
@@ -244,7 +245,8 @@ public class PublicKeyPrims implements SignaturePrimitives {
 		cache = new Cache(CACHE_SIZE);
 	}
 		
-	protected boolean verifyBytes(byte [] databytes, byte [] sigbytes) throws SignatureException {
+	// Synchronized, as a Signature object is not thread safe and several verifier threads may share one signer.
+	protected synchronized boolean verifyBytes(byte [] databytes, byte [] sigbytes) throws SignatureException {
 		if (cache != null && cache.hasValidSignature(databytes,sigbytes)) {
 			if (++Tracker.singleton.verifycount_cached % 100 == 0)
 				System.err.println("Verifycount_cached: "+Tracker.singleton.verifycount_cached);			
@@ -263,7 +265,7 @@ public class PublicKeyPrims implements SignaturePrimitives {
 		return isValid;
 	}
 
-	protected byte[] signBytes(byte [] databytes) throws SignatureException {
+	protected synchronized byte[] signBytes(byte [] databytes) throws SignatureException {
 		if (++Tracker.singleton.signcount % 1000 == 0)
 			System.err.println("SIgncount: "+Tracker.singleton.signcount);
 		signer.update(databytes);
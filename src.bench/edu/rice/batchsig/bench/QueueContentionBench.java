@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig.bench;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import edu.rice.batchsig.AsyncQueue;
+
+/**
+ * Measure how adding to a signing queue scales with the number of producer
+ * threads, while one thread drains it as a processing thread would.
+ * 
+ * Compares AsyncQueue against a queue guarded by a single monitor, as
+ * AsyncQueue used to be.
+ * 
+ * Usage: QueueContentionBench [messages per run]
+ */
+public class QueueContentionBench {
+	/** Common operations of the queues being compared. */
+	interface BenchQueue {
+		void add(Object message);
+		int drain();
+	}
+
+	/** The lock-free queue. */
+	static class LockFreeQueue extends AsyncQueue<Object> implements BenchQueue {
+		@Override
+		public int drain() {
+			return atomicGetQueue().size();
+		}
+	}
+
+	/** A queue where adding and draining synchronize on one monitor, notifying on every add. */
+	static class MonitorQueue implements BenchQueue {
+		private ArrayList<Object> queue = new ArrayList<Object>(32);
+
+		@Override
+		public synchronized void add(Object message) {
+			queue.add(message);
+			this.notify();
+		}
+
+		@Override
+		public int drain() {
+			ArrayList<Object> oldqueue;
+			synchronized (this) {
+				oldqueue = queue;
+				queue = new ArrayList<Object>(32);
+			}
+			return oldqueue.size();
+		}
+	}
+
+	/**
+	 * Add 'total' messages split among the producer threads, while this
+	 * thread drains the queue.
+	 * 
+	 * @return Messages added per second.
+	 */
+	static double run(final BenchQueue queue, int producers, final int total) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final int each = total / producers;
+		final Object message = new Object();
+		Thread threads[] = new Thread[producers];
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < each; j++)
+						queue.add(message);
+				}
+			};
+			threads[i].start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		int drained = 0;
+		while (drained < each * producers)
+			drained += queue.drain();
+		long end = System.nanoTime();
+		for (Thread t : threads)
+			t.join();
+		return drained / ((end - begin) / 1e9);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int total = args.length > 0 ? Integer.parseInt(args[0]) : 4000000;
+		// Warm up the hotspot compiler.
+		for (int i = 0; i < 3; i++) {
+			run(new LockFreeQueue(), 4, total / 4);
+			run(new MonitorQueue(), 4, total / 4);
+		}
+		System.out.format("%9s %15s %15s\n", "producers", "lockfree msg/s", "monitor msg/s");
+		for (int producers = 1; producers <= 32; producers *= 2) {
+			double lockfree = run(new LockFreeQueue(), producers, total);
+			double monitor = run(new MonitorQueue(), producers, total);
+			System.out.format("%9d %15.0f %15.0f\n", producers, lockfree, monitor);
+		}
+	}
+}
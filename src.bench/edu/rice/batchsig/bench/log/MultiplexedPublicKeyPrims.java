@@ -41,7 +41,7 @@ public class MultiplexedPublicKeyPrims implements SignaturePrimitives {
 		this.provider = provider;
 	}
 	
-	public SignaturePrimitives load(String signer) {
+	public synchronized SignaturePrimitives load(String signer) {
 		if (signer.equals(""))
 			throw new Error("Illegal empty signer_id");
 		try {
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig.bench.log;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.rice.batchsig.IMessage;
+import edu.rice.batchsig.ProcessQueue;
+import edu.rice.batchsig.ShutdownableThread;
+import edu.rice.batchsig.lazy.VerifyLazily;
+
+/**
+ * Lazily verify messages on several threads.
+ *
+ * Messages are partitioned by (author, tree_id), so every OneTree lives in
+ * exactly one partition, and each partition is a VerifyHisttreeLazilyQueue
+ * with its own thread and its own lazy verifier. None of the verifier state
+ * is shared between threads. The verifiers may share a VerifiedRootCache,
+ * and the SignaturePrimitives must be thread safe.
+ *
+ * A user's messages may be spread over several partitions. We remember
+ * which partitions each user has been sent messages in, and forceUser() is
+ * only sent to those.
+ *
+ * Runs as a thread so it has the same lifecycle as a single
+ * VerifyHisttreeLazilyQueue: start() starts the partitions, and the thread
+ * exits once every partition has finished after shutdown().
+ */
+public class PartitionedVerifyLazilyQueue extends ShutdownableThread implements ProcessQueue<IMessage> {
+	/** At most one partition for each bit of the masks in userPartitions. */
+	public static final int MAX_PARTITIONS = 64;
+
+	/** The partitions, each with its own thread. */
+	private final VerifyHisttreeLazilyQueue[] partitions;
+
+	/**
+	 * Map from recipient_user to the bitmask of partitions that may hold
+	 * messages to that user. Bits are set after adding and cleared when
+	 * forcing, so a bit may be stale, but is never missing once add()
+	 * returns.
+	 */
+	private final ConcurrentHashMap<Object, AtomicLong> userPartitions = new ConcurrentHashMap<Object, AtomicLong>();
+
+	/** Make one partition for each verifier given. */
+	public PartitionedVerifyLazilyQueue(VerifyLazily verifiers[]) {
+		if (verifiers.length == 0 || verifiers.length > MAX_PARTITIONS)
+			throw new IllegalArgumentException("Need between 1 and " + MAX_PARTITIONS + " partitions");
+		partitions = new VerifyHisttreeLazilyQueue[verifiers.length];
+		for (int i = 0; i < verifiers.length; i++)
+			partitions[i] = new VerifyHisttreeLazilyQueue(verifiers[i]);
+	}
+
+	/** Which partition handles messages from this author and tree? */
+	private int partitionFor(IMessage m) {
+		if (partitions.length == 1)
+			return 0;
+		long treeid = m.getSignatureBlob().getTreeId();
+		int h = 31 * m.getAuthor().hashCode() + (int) (treeid ^ (treeid >>> 32));
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % partitions.length;
+	}
+
+	/** Get the partition mask for a user, making it if needed. */
+	private AtomicLong maskFor(Object user) {
+		AtomicLong out = userPartitions.get(user);
+		if (out == null) {
+			AtomicLong fresh = new AtomicLong(0);
+			out = userPartitions.putIfAbsent(user, fresh);
+			if (out == null)
+				out = fresh;
+		}
+		return out;
+	}
+
+	// Called concurrently.
+	public void add(IMessage message) {
+		int i = partitionFor(message);
+		partitions[i].add(message);
+		// Mark the partition after adding, so that a forceUser() that clears
+		// the mask in between cannot leave the message unmarked.
+		AtomicLong mask = maskFor(message.getRecipientUser());
+		long bit = 1L << i;
+		while (true) {
+			long old = mask.get();
+			if ((old & bit) != 0 || mask.compareAndSet(old, old | bit))
+				break;
+		}
+	}
+
+	// Called concurrently.
+	public void forceUser(Integer user) {
+		AtomicLong mask = userPartitions.get(user);
+		if (mask == null)
+			return;
+		// Messages added after this point will be marked again.
+		long bits = mask.getAndSet(0);
+		for (int i = 0; bits != 0; i++, bits >>>= 1)
+			if ((bits & 1) != 0)
+				partitions[i].forceUser(user);
+	}
+
+	// Called concurrently.
+	public void process() {
+		// Nothing to do at the end of each batch. We're processing asynchronously at all times.
+	}
+
+	// Called concurrently.
+	public void finish() {
+		shutdown();
+	}
+
+	// Called concurrently.
+	public int peekSize() {
+		int out = 0;
+		for (VerifyHisttreeLazilyQueue partition : partitions)
+			out += partition.peekSize();
+		return out;
+	}
+
+	/** Request that every partition finish its work and exit. */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		for (VerifyHisttreeLazilyQueue partition : partitions) {
+			partition.shutdown();
+			partition.interrupt(); // In case it is idle and not doing anything.
+		}
+	}
+
+	/** Run the partitions until they have all finished. */
+	@Override
+	public void run() {
+		for (VerifyHisttreeLazilyQueue partition : partitions)
+			partition.start();
+		for (VerifyHisttreeLazilyQueue partition : partitions) {
+			// We may be interrupted on shutdown; keep waiting for the partitions to drain.
+			while (partition.isAlive()) {
+				try {
+					partition.join();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+}
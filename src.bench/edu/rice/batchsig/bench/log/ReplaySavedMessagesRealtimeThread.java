@@ -36,13 +36,13 @@ import edu.rice.batchsig.bench.Tracker;
 public class ReplaySavedMessagesRealtimeThread extends MessageGeneratorThreadBase {
 	final private IncomingMessageStreamFromFile input;
 
-	private final VerifyHisttreeLazilyQueue lazyqueue;
+	private final PartitionedVerifyLazilyQueue lazyqueue;
 	
 	/** Add new messages to the queue at the requested. 
 	 * 
 	 * @param maxsize Messages per second.
 	 * */
-	public ReplaySavedMessagesRealtimeThread(VerifyHisttreeLazilyQueue verifyqueue, FileInputStream fileinput, int maxsize) {
+	public ReplaySavedMessagesRealtimeThread(PartitionedVerifyLazilyQueue verifyqueue, FileInputStream fileinput, int maxsize) {
 		super(verifyqueue,maxsize);
 		if (fileinput == null)
 			throw new Error();
@@ -2,6 +2,7 @@ package edu.rice.batchsig.bench.log;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import edu.rice.batchsig.AsyncQueue;
@@ -17,7 +18,9 @@ import edu.rice.batchsig.lazy.VerifyLazily;
  * 
  * Runs the thread that handles various incoming processing requests.
  * 
- * Handle the thread that handles the processing. */
+ * Handle the thread that handles the processing.
+ * 
+ * Also used as one partition of a PartitionedVerifyLazilyQueue. */
 public class VerifyHisttreeLazilyQueue extends ShutdownableThread implements ProcessQueue<IMessage> {
 	VerifyLazily treeverifier;
 
@@ -79,49 +82,39 @@ public class VerifyHisttreeLazilyQueue extends ShutdownableThread implements Pro
 		}
 	}
 
-	boolean maximally_lazy = false;
-	
 	/** The core processing thread. */
 	@Override
 	public void run() {
 		long verbose=0;
-		long lastExpiration = 0;
-		long lastMessage=0;
 		try {
 			while (!isShuttingdown()) {
-				// Since we're idle? See if there's any useful work we could do right now.
-				if (sleepSemaphore.tryAcquire()) {
-					// We have work waiting.... Release the semaphore and do it.
-					sleepSemaphore.release();
-				} else {
-					// No work waiting to do. See if we can eagerly use this idle time.
+				// Force whatever has waited out its latency bound, even when busy.
+				treeverifier.forceExpired(System.currentTimeMillis());
+
+				if (!sleepSemaphore.tryAcquire()) {
+					// No work waiting to do.
 					if (verbose++%100 == 0)
 						System.out.println("Queuesize: "+treeverifier.peekSize());
-					// No work that must be done right now, can we eagerly do something?
-					if (!maximally_lazy) {
-						//long now = System.currentTimeMillis();
-						if (treeverifier.peekSize() > 100) {
-							treeverifier.forceOldest();
-							continue; // And try again for more eager work.
-						}
-					} else {
-						if (treeverifier.peekSize() > MAX_OUTSTANDING) {
-							System.out.format("Forcing because of size %d > %d\n",treeverifier.peekSize(),MAX_OUTSTANDING);
-							treeverifier.forceOldest();
-							continue; // And try again for more eager work.
-						}
+					if (treeverifier.peekSize() > MAX_OUTSTANDING) {
+						System.out.format("Forcing because of size %d > %d\n",treeverifier.peekSize(),MAX_OUTSTANDING);
+						treeverifier.forceOldest();
+						continue; // And try again for more eager work.
 					}
-					// Only way we got here is if there is no work we could do. Time to block (on the acquire below)
+					// Block until there is work, or until the next message comes due.
+					long deadline = treeverifier.nextDeadline();
+					if (deadline == Long.MAX_VALUE)
+						sleepSemaphore.acquire();
+					else if (!sleepSemaphore.tryAcquire(Math.max(deadline - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS))
+						continue;
 				}
-				
+
 				// There's something sitting around to be done right now.
-				sleepSemaphore.acquire();
 				IMessage m;
 
 				// Is it a message to process?
 				m = messageMailbox.poll();
 				if (m != null) {
-					if (verbose++%5000 == 0)
+					if (verbose++%5000 == 0 && m instanceof IncomingMessage)
 						System.out.println("Virt: "+((IncomingMessage)m).getVirtualClock());
 					treeverifier.add(m);
 					continue;
@@ -173,6 +173,42 @@ public class Bench {
     	};
     }
 
+    /** The post-order index as it used to be computed, one loop iteration per level. Kept for comparison. */
+    static int loopComputeIndex(int layer, int index) {
+		int s = 0;
+		int j = index + (1 << layer) - 1;
+		while (j > 0) {
+			s = s + j;
+			j = j / 2;
+		}
+		return s + layer;
+    }
+
+    /** Compute the index of every node of a tree with the given number of leaves. */
+    Callable<Long> computeIndices(final int keycount, final boolean closedform) {
+    	return new Callable<Long>() {
+    		public Long call() {
+    			long sum = 0;
+    			for (int layer = 0 ; (1 << layer) <= keycount ; layer++)
+    				for (int index = 0 ; index < keycount ; index += 1 << layer)
+    					sum += closedform ? NodeCursor.computeIndex(layer,index) : loopComputeIndex(layer,index);
+    			return sum;
+    		}
+    	};
+    }
+
+    /** Compare the closed-form post-order index against the loop, then time the tree operations that use it. */
+    public void doIndexBenchmark(int keycount) throws Exception {
+    	if (computeIndices(keycount,true).call().longValue() != computeIndices(keycount,false).call().longValue())
+    		throw new Error("Closed form index disagrees with the loop");
+    	System.out.println("Index-Loop " + new Benchmark(computeIndices(keycount,false)));
+    	System.out.println("Index-Closed " + new Benchmark(computeIndices(keycount,true)));
+
+    	Callable<TreeBase<byte[], byte[]>> treec = makeTree2(makeKeyList(keycount));
+    	System.out.println("Tree-HAA-Build " + new Benchmark(treec));
+		System.out.println("Tree-HAA-ProofGen " + new Benchmark(makeProof(treec.call())));
+    }
+
     public void estimateSizes(String prefix, Callable<TreeBase<byte[], byte[]>> treec) {
     	try {
     	long bytes = 0, count = 0;
@@ -205,6 +241,9 @@ public class Bench {
 			treec = makeTree4(keys);  prefix="Tree-MA-";
 		} else if (mode == 5) {
 			treec = makeTree5(keys);  prefix="Tree-MH-";
+		} else if (mode == 6) {
+			doIndexBenchmark(keycount);
+			return;
 		} else
 			throw new Error();
 
@@ -21,6 +21,9 @@ package edu.rice.batchsig;
 
 import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manage an asynchronous queue of messages to process.
@@ -28,23 +31,61 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Messages can be added to the queue at any time, and the contents can be
  * atomically fetched out. (which empties the queue)
  * 
+ * Adding is lock-free, so many producer threads do not contend on a
+ * monitor. The queue is a singly linked list; a producer swaps its node
+ * into the tail, then links the old tail to it. Draining swaps in a fresh
+ * tail and walks the list up to the old one, waiting out any producer that
+ * has swapped but not yet linked. Producers only take a lock to wake a
+ * thread blocked in suspendTillNonEmpty().
+ * 
  * @author scrosby
  * 
  * @param <T>
  */
 public class AsyncQueue<T> {
-	private ArrayList<T> queue;
+	/** A node in the list. */
+	private static final class Node<T> {
+		final T message;
+		volatile Node<T> next = null;
+
+		Node(T message) {
+			this.message = message;
+		}
+	}
+
+	/** The node before the first message; only touched while draining. */
+	private Node<T> head;
+	/** The last node added. */
+	private final AtomicReference<Node<T>> tail;
 	AtomicInteger size = new AtomicInteger(0);
-	
+	/** Serializes draining, if several threads process the same queue. */
+	private final Object drainlock = new Object();
+
+	/** Number of threads in suspendTillNonEmpty. */
+	private final AtomicInteger waiters = new AtomicInteger(0);
+	private final ReentrantLock waitlock = new ReentrantLock();
+	private final Condition nonempty = waitlock.newCondition();
+
 	public AsyncQueue() {
-		initQueue();
+		head = new Node<T>(null);
+		tail = new AtomicReference<Node<T>>(head);
 	}
 
 	/** Add the given message to the queue */
-	public synchronized void add(T message) {
-		queue.add(message);
-		size.addAndGet(1);
-		this.notify();
+	public void add(T message) {
+		Node<T> node = new Node<T>(message);
+		// Count it first, so a concurrent drain never drives the size negative.
+		size.incrementAndGet();
+		Node<T> prev = tail.getAndSet(node);
+		prev.next = node;
+		if (waiters.get() > 0) {
+			waitlock.lock();
+			try {
+				nonempty.signalAll();
+			} finally {
+				waitlock.unlock();
+			}
+		}
 	}
 
 	/** Get the current queue size.  */
@@ -52,12 +93,6 @@ public class AsyncQueue<T> {
 		return size.get();
 	}
 
-	/** Reset and start with a new empty queue */
-	private void initQueue() {
-		queue = new ArrayList<T>(32);
-		size.set(0);
-	}
-
 	/**
 	 * Get the set of queued messages atomically and empty the queue. 
 	 * 
@@ -65,19 +100,36 @@ public class AsyncQueue<T> {
 	 * for processing (or re-queuing) the messages.
 	 */
 	protected ArrayList<T> atomicGetQueue() {
-		ArrayList<T> oldqueue;
-		synchronized (this) {
-			oldqueue = queue;
-			initQueue();
+		synchronized (drainlock) {
+			Node<T> stub = new Node<T>(null);
+			Node<T> last = tail.getAndSet(stub);
+			ArrayList<T> oldqueue = new ArrayList<T>(Math.max(32, size.get()));
+			Node<T> node = head;
+			while (node != last) {
+				Node<T> next;
+				// A producer swapped in this node's successor, but has not linked it yet.
+				while ((next = node.next) == null)
+					Thread.yield();
+				node = next;
+				oldqueue.add(node.message);
+			}
+			head = stub;
+			size.addAndGet(-oldqueue.size());
+			return oldqueue;
 		}
-		return oldqueue;
 	}
 
-	/** Suspend the calling thread until the queue is non-empty */
-	public synchronized void suspendTillNonEmpty() {
+	/** Suspend the calling thread until the queue is non-empty, or it is interrupted. */
+	public void suspendTillNonEmpty() {
+		waiters.incrementAndGet();
+		waitlock.lock();
 		try {
-			this.wait();
+			while (size.get() == 0)
+				nonempty.await();
 		} catch (InterruptedException e) {
+		} finally {
+			waitlock.unlock();
+			waiters.decrementAndGet();
 		}
 	}
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig;
+
+/**
+ * Decide when to cut a batch from a queue, rather than at a fixed epoch.
+ * 
+ * The policy tracks the arrival rate of messages and the cost of processing
+ * a batch, both as moving averages. A batch is cut as soon as it holds
+ * maxbatch messages, or once its oldest message would otherwise miss the
+ * maxwait deadline. Otherwise it waits for the batch to grow to the size that
+ * the processor sustains at the current arrival rate (rate * cost), which
+ * is never less than minbatch. At low rates, that is one message, so every
+ * message is processed right away; at high rates the batches grow to what
+ * the signer can keep up with.
+ * 
+ * Only one thread may use a policy at a time.
+ */
+public class BatchPolicy {
+	/** How long to sleep at most between checks of the queue size, in nanoseconds. */
+	private static final long POLL_NANOS = 1000000;
+	/** Weight of the newest observation in the moving averages. */
+	private static final double ALPHA = 0.2;
+
+	/** Most time that a message should wait before being processed, in nanoseconds. */
+	private final long maxwait;
+	private final int minbatch, maxbatch;
+
+	/** Moving average of the arrival rate, in messages per nanosecond. */
+	private double arrivalrate = 0.0;
+	/** Moving average of the time to process a batch, in nanoseconds. */
+	private double batchcost = 0.0;
+	/** When the last batch was cut. */
+	private long lastcut = System.nanoTime();
+	/** When the oldest message still in the queue arrived, at the latest. */
+	private long pendingsince = lastcut;
+
+	/**
+	 * @param maxwait
+	 *            The latency target; the most time, in milliseconds, a
+	 *            message should wait before its batch is done processing.
+	 * @param minbatch
+	 *            Smallest batch to cut before the deadline.
+	 * @param maxbatch
+	 *            Largest batch; cut as soon as this many messages wait.
+	 */
+	public BatchPolicy(int maxwait, int minbatch, int maxbatch) {
+		if (maxwait <= 0 || minbatch < 1 || maxbatch < minbatch)
+			throw new IllegalArgumentException("Invalid batching policy");
+		this.maxwait = maxwait * 1000000L;
+		this.minbatch = minbatch;
+		this.maxbatch = maxbatch;
+	}
+
+	/**
+	 * Block until a batch should be cut from the queue. Returns early if the
+	 * thread is interrupted, eg, to shut down.
+	 */
+	public void awaitBatch(SuspendableProcessQueue<?> queue) {
+		if (queue.peekSize() == 0) {
+			queue.suspendTillNonEmpty();
+			pendingsince = System.nanoTime();
+		}
+		while (true) {
+			long now = System.nanoTime();
+			long delay = cutDelay(queue.peekSize(), now - pendingsince);
+			if (delay <= 0)
+				return;
+			try {
+				Thread.sleep(Math.min(delay, POLL_NANOS) / 1000000, (int) (Math.min(delay, POLL_NANOS) % 1000000));
+			} catch (InterruptedException e) {
+				// Keep the interrupt, so the caller sees that it should shut down.
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * How much longer to wait before cutting a batch.
+	 * 
+	 * @param queued
+	 *            Number of messages waiting.
+	 * @param waited
+	 *            How long the oldest of them has waited, in nanoseconds.
+	 * @return The delay in nanoseconds; zero or less to cut right away.
+	 */
+	long cutDelay(int queued, long waited) {
+		if (queued == 0)
+			return POLL_NANOS;
+		if (queued >= maxbatch)
+			return 0;
+		// Leave enough time to process the batch within the deadline.
+		long slack = maxwait - (long) batchcost - waited;
+		if (slack <= 0)
+			return 0;
+		double target = Math.max(minbatch, Math.min(maxbatch, arrivalrate * batchcost));
+		if (queued >= target)
+			return 0;
+		if (arrivalrate <= 0.0)
+			return queued >= minbatch ? 0 : slack;
+		return Math.min(slack, (long) ((target - queued) / arrivalrate));
+	}
+
+	/**
+	 * Record that a batch was processed.
+	 * 
+	 * @param size
+	 *            Number of messages in the batch.
+	 * @param start
+	 *            System.nanoTime() when the batch was cut.
+	 * @param end
+	 *            System.nanoTime() when it was done processing.
+	 */
+	public void recordBatch(int size, long start, long end) {
+		long interval = start - lastcut;
+		if (interval > 0)
+			arrivalrate = average(arrivalrate, size / (double) interval);
+		batchcost = average(batchcost, end - start);
+		lastcut = start;
+		// Anything now in the queue arrived after the batch was cut.
+		pendingsince = start;
+	}
+
+	private static double average(double old, double sample) {
+		return ALPHA * sample + (1 - ALPHA) * old;
+	}
+
+	/** The estimated arrival rate, in messages per second. */
+	public double getArrivalRate() {
+		return arrivalrate * 1e9;
+	}
+
+	/** The estimated time to process a batch, in milliseconds. */
+	public double getBatchCost() {
+		return batchcost / 1e6;
+	}
+}
@@ -3,6 +3,7 @@ package edu.rice.batchsig;
 import com.google.protobuf.ByteString;
 
 import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.PrunedTreeRoot;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
@@ -22,25 +23,76 @@ public class HistTreeTools {
 		HistoryTree<byte[], byte[]> tree = new HistoryTree<byte[], byte[]>(
 				new SHA256Agg(), new HashStore<byte[], byte[]>());
 		tree.updateTime(pb.getVersion());
-		tree.parseTree(pb);
+		// The verifier has the message, so skip copying its value out of the proof.
+		tree.parseTree(pb, false);
 		return tree;
 	}
 
 	/** Verify the message in the parsed history tree with a public key signature verification. */
 	public static boolean verifyHistoryRoot(SignaturePrimitives signer, IMessage message, HistoryTree<byte[], byte[]> parsed) {
+		return verifyHistoryRoot(signer, null, message, parsed);
+	}
+
+	/**
+	 * Verify the message in the parsed history tree with a public key
+	 * signature verification, skipped if the cache holds its root.
+	 * 
+	 * @param cache
+	 *            The cache of verified roots. May be null.
+	 */
+	public static boolean verifyHistoryRoot(SignaturePrimitives signer, VerifiedRootCache cache, IMessage message, HistoryTree<byte[], byte[]> parsed) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 	
 		// See if the message is in the tree.
 		if (!Verifier.checkLeaf(message, parsed))
 			return false;
 		
-		final byte[] rootHash = parsed.agg();
+		return verifyHistoryRoot(signer, cache, sigblob, parsed.version(), ByteString.copyFrom(parsed.agg()));
+	}
+
+	/**
+	 * Verify the public key signature on a history tree root already
+	 * recomputed from a message's proof, whose leaf has been checked.
+	 * 
+	 * @param cache
+	 *            The cache of verified roots. May be null.
+	 */
+	public static boolean verifyHistoryRoot(SignaturePrimitives signer, VerifiedRootCache cache, TreeSigBlob sigblob, int version, ByteString rootHash) {
 		TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
 			.setTreetype(SigTreeType.HISTORY_TREE)
-			.setVersion(parsed.version())
-			.setRoothash(ByteString.copyFrom(rootHash));
+			.setVersion(version)
+			.setRoothash(rootHash);
 	
-		return Verifier.checkSig(signer, sigblob, msgbuilder);
+		return Verifier.checkSig(signer, cache, sigblob, msgbuilder);
 	}
 
+	/** Make a walker for recomputing history tree roots straight from a proof. */
+	public static PrunedTreeRoot<byte[], byte[]> makeRootWalker() {
+		return PrunedTreeRoot.forHistoryTree(new SHA256Agg());
+	}
+
+	/**
+	 * Verify a message, including its public key signature, without parsing
+	 * its history tree. Use this when the tree is not needed for anything
+	 * else, such as splicing.
+	 * 
+	 * @param cache
+	 *            The cache of verified roots. May be null.
+	 */
+	public static boolean verifyHistoryProof(SignaturePrimitives signer, VerifiedRootCache cache, IMessage message, PrunedTreeRoot<byte[], byte[]> rootwalker) {
+		TreeSigBlob sigblob = message.getSignatureBlob();
+		PrunedTree pb = sigblob.getTree();
+
+		// See if the message is in the tree, and get the root hash if it is.
+		final byte[] rootHash = rootwalker.rootIfLeafMatches(pb, sigblob.getLeaf(), message.getData());
+		if (rootHash == null)
+			return false;
+
+		TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
+			.setTreetype(SigTreeType.HISTORY_TREE)
+			.setVersion(pb.getVersion())
+			.setRoothash(ByteString.copyFrom(rootHash));
+
+		return Verifier.checkSig(signer, cache, sigblob, msgbuilder);
+	}
 }
\ No newline at end of file
@@ -19,32 +19,36 @@
 
 package edu.rice.batchsig;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 import com.google.protobuf.ByteString;
 
 import edu.rice.batchsig.bench.Tracker;
+import edu.rice.historytree.BatchProofBuilder;
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.ProofError;
-import edu.rice.historytree.TreeBase;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
 import edu.rice.historytree.generated.Serialization.SignatureType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
-import edu.rice.historytree.storage.AppendOnlyArrayStore;
-import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.DigestArrayStore;
+import edu.rice.historytree.storage.MappedFileStore;
 
 /** Sign a set of messages by placing them into a history tree.
  * 
  * 
  */
 
-public class HistoryQueue extends QueueBase<OMessage> implements SuspendableProcessQueue<OMessage> {
+public class HistoryQueue extends QueueBase<OMessage> implements PipelinableQueue {
 	/** Largest size we want the history tree to grow to before rotating  */
 	private final int MAX_SIZE=1<<16 - 2; // Should be just under a power of 2.
 	
@@ -55,73 +59,164 @@ public class HistoryQueue extends QueueBase<OMessage> implements SuspendableProc
 
 	/** The actual history tree. */
 	private HistoryTree<byte[], byte[]> histtree;
-		
+
+	/** Directory holding the persistent history tree, or null if the tree is only kept on the heap. */
+	private final File logdir;
+	/** The persistent store under histtree, if any. */
+	private MappedFileStore mappedstore;
+
+	/**
+	 * Protects histtree, its treeid and lastcontacts. Appending a batch
+	 * takes the write lock. Building the proofs for that batch only
+	 * reads the tree, so it holds the read lock.
+	 */
+	private final ReentrantReadWriteLock treelock = new ReentrantReadWriteLock();
+
+	/** Give all of a recipient's messages in a batch one shared proof. */
+	private volatile boolean bundleproofs = false;
+
 	public HistoryQueue(SignaturePrimitives signer) {
 		super(signer);
+		this.logdir = null;
 		initTree();
 	}
 
+	/**
+	 * Make a queue whose history tree is persisted in the given directory. If
+	 * the directory already holds a tree, it is reopened along with its
+	 * tree_id, so signing continues in the same tree across a restart.
+	 * Retired trees are kept in the directory under the name of their
+	 * tree_id.
+	 */
+	public HistoryQueue(SignaturePrimitives signer, File logdir) throws IOException {
+		super(signer);
+		this.logdir = logdir;
+		openTree();
+	}
+
+	/**
+	 * Sign with bundled proofs. All of the messages of a batch to one
+	 * recipient share one pruned tree, holding all of their leaves and
+	 * their splice point, so their common ancestors are sent once. The
+	 * first of those messages carries the tree and the signature; the
+	 * rest carry only their leaf. The recipient must verify them with a
+	 * VerifyQueue, and receive the first one no later than the rest.
+	 */
+	public void setBundleProofs(boolean bundle) {
+		this.bundleproofs = bundle;
+	}
+
 	/** Create the tree. */
 	private void initTree() {		
 		treeid = new Random().nextLong();
-		histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new AppendOnlyArrayStore<byte[], byte[]>());
+		histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), new DigestArrayStore());
+		lastcontacts = new HashMap<Object, Integer>();
+	}
+
+	/** Open the persistent tree in logdir, creating a fresh one if there is none. */
+	private void openTree() throws IOException {
+		mappedstore = new MappedFileStore(new File(logdir, "current"));
+		if (mappedstore.getTime() < 0) {
+			treeid = new Random().nextLong();
+			mappedstore.setTag(treeid);
+			mappedstore.force();
+		} else {
+			treeid = mappedstore.getTag();
+		}
+		histtree = new HistoryTree<byte[], byte[]>(new SHA256Agg(), mappedstore).reopen(mappedstore.getTime());
 		lastcontacts = new HashMap<Object, Integer>();
 	}
 
+	/** Close the current persistent tree and rename it after its tree_id. */
+	private void retireTree() throws IOException {
+		mappedstore.close();
+		String name = String.format("%016x", treeid);
+		for (String suffix : new String[] {MappedFileStore.AGG_SUFFIX, MappedFileStore.VAL_SUFFIX}) {
+			File from = new File(logdir, "current" + suffix);
+			if (!from.renameTo(new File(logdir, name + suffix)))
+				throw new IOException("Unable to retire history tree " + from);
+		}
+	}
+
 	/** Make a new fresh history tree if the additional nodes would make it bigger than the target size. */
 	private void rotateStore(int additionalNodes) {
-		if (additionalNodes + histtree.version() > MAX_SIZE)
-			initTree();
+		if (additionalNodes + histtree.version() > MAX_SIZE) {
+			if (logdir == null) {
+				initTree();
+				return;
+			}
+			try {
+				retireTree();
+				openTree();
+			} catch (IOException e) {
+				throw new Error("Unable to rotate persistent history tree", e);
+			}
+		}
 	}
 	
 	@Override
 	public void process() {
-		ArrayList<OMessage> oldqueue = atomicGetQueue();
-		if (oldqueue.size() == 0)
+		SigningBatch batch = buildBatch();
+		if (batch == null)
 			return;
+		batch.sign();
+		batch.deliver();
+	}
+
+	@Override
+	public SigningBatch buildBatch() {
+		final ArrayList<OMessage> oldqueue = atomicGetQueue();
+		if (oldqueue.size() == 0)
+			return null;
 		Tracker.singleton.trackBatchSize(oldqueue.size());
 
 		/**
-		 * For now, only a single history tree process can be outstanding. The
-		 * current pruned tree building code does not support building pruned
-		 * trees around anything but the latest commitment. This means that we
-		 * cannot drop the tree lock to do RSA concurrently; the tree will grow
-		 * and we'll be unable to generating proofs.
+		 * The current pruned tree building code does not support building
+		 * pruned trees around anything but the latest commitment, so the next
+		 * batch cannot be appended until every proof of this batch is built.
+		 * Signing the root can wait until after that, so it may overlap with
+		 * the next batch.
 		 *
-		 * TODO: If we fix that, then a simple many-readers/one-writers lock will 
-		 * allow concurrency between RSA, adding to the history tree and generating proofs.
+		 * Appending holds the write lock. We then downgrade to the read lock,
+		 * under which the tree is read-only, and build the proofs, possibly
+		 * in parallel.
 		 */
-		// Lock the history tree from concurrent modification 
-		synchronized (histtree) {
+		final boolean bundle = bundleproofs;
+		final int leaf_offset;
+		final int splicepoints[] = new int[oldqueue.size()];
+		final byte[] tosign;
+		treelock.writeLock().lock();
+		try {
 			// First, is it big enough to build a new tree?
 			rotateStore(oldqueue.size());
 
 			/* Leaf indices are offset by the initial size of the tree */
-			int leaf_offset = histtree.version()+1; // Add one because message is inserted at the NEXT index.
+			leaf_offset = histtree.version()+1; // Add one because message is inserted at the NEXT index.
 
 			for (Message m : oldqueue) {
 				histtree.append(m.getData());
 			}
 
+			// Only sign what would survive a restart.
+			if (mappedstore != null) {
+				try {
+					mappedstore.force();
+				} catch (IOException e) {
+					throw new Error("Unable to persist history tree", e);
+				}
+			}
+
 			// Make the unified signature of all.
 			TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
 					.setTreetype(SigTreeType.HISTORY_TREE)
 					.setVersion(histtree.version())
 					.setRoothash(ByteString.copyFrom(histtree.agg()));
+			tosign = msgbuilder.build().toByteArray();
 
-			// Make the template sigblob containing the RSA signature.
-			TreeSigBlob.Builder sigblob = TreeSigBlob.newBuilder();
-			sigblob.setSignatureType(SignatureType.SINGLE_HISTORY_TREE);
-			signer.sign(msgbuilder.build().toByteArray(),sigblob);
-
-			// Make the read-only template.
-			TreeSigBlob template=sigblob.build();
-
-			// Although the tree is semantically read-only, it is still possible
-			// for it to be mutated. Eg, during array resizing. A one-writer/many-readers 
-			// lock is still needed, but RSA can run in parallel as well as threads generating proofs.
+			// Each message splices to where its recipient was last contacted before this batch. 
 			for (int i = 0; i < oldqueue.size(); i++) {
-				processMessage(oldqueue.get(i), leaf_offset + i, TreeSigBlob.newBuilder(template));
+				Integer lastcontact = lastcontacts.get(oldqueue.get(i).getRecipient());
+				splicepoints[i] = lastcontact == null ? -1 : lastcontact.intValue();
 			}
 			// Update the last contacts for each message.
 			for (int i = 0; i < oldqueue.size(); i++) {
@@ -129,46 +224,125 @@ public class HistoryQueue extends QueueBase<OMessage> implements SuspendableProc
 				Object recipient = message.getRecipient();
 				// Indicate that we want a splicepoint to the end of the bundle.
 				lastcontacts.put(recipient,histtree.version());
-				
 			}
+			treelock.readLock().lock();
+		} finally {
+			treelock.writeLock().unlock();
+		}
+		final TreeSigBlob proofs[] = new TreeSigBlob[oldqueue.size()];
+		try {
+			// Build the proofs, on the worker pool if there is one.
+			final BatchProofBuilder<byte[], byte[]> builder = new BatchProofBuilder<byte[], byte[]>(histtree);
+			if (bundle) {
+				final ArrayList<int[]> bundles = groupByRecipient(oldqueue);
+				forEachInBatch(bundles.size(), 1, new BatchWork() {
+					public void process(int i) {
+						makeBundledProofs(builder, bundles.get(i), leaf_offset, splicepoints, proofs);
+					}
+				});
+			} else {
+				forEachInBatch(oldqueue.size(), new BatchWork() {
+					public void process(int i) {
+						proofs[i] = makeProof(builder, leaf_offset + i, splicepoints[i]);
+					}
+				});
+			}
+		} finally {
+			treelock.readLock().unlock();
+		}
+
+		// The template sigblob that will hold the RSA signature.
+		TreeSigBlob.Builder sigblob = TreeSigBlob.newBuilder();
+		sigblob.setSignatureType(bundle ? SignatureType.BUNDLED_HISTORY_TREE : SignatureType.SINGLE_HISTORY_TREE);
+		return new SigningBatch(signer, oldqueue, tosign, sigblob, proofs);
+	}
+
+	/** Group the indices of the messages in a batch by recipient, each group in increasing order. */
+	private static ArrayList<int[]> groupByRecipient(ArrayList<OMessage> batch) {
+		LinkedHashMap<Object, ArrayList<Integer>> groups = new LinkedHashMap<Object, ArrayList<Integer>>();
+		for (int i = 0; i < batch.size(); i++) {
+			Object recipient = batch.get(i).getRecipient();
+			ArrayList<Integer> group = groups.get(recipient);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(recipient, group);
+			}
+			group.add(i);
+		}
+		ArrayList<int[]> out = new ArrayList<int[]>(groups.size());
+		for (ArrayList<Integer> group : groups.values()) {
+			int[] indices = new int[group.size()];
+			for (int j = 0; j < indices.length; j++)
+				indices[j] = group.get(j);
+			out.add(indices);
 		}
+		return out;
 	}
 
-	/** Fill in the protocol buffer object for each message with the appropriate pruned tree.
+	/**
+	 * Build the signature blobs, less the signature, of a recipient's
+	 * messages in the batch. The first holds one pruned tree with the
+	 * leaves of all of them and their splice point, which they share as
+	 * they share a recipient. The rest only point at their leaf in it.
 	 * 
+	 * Only reads the history tree, so may run concurrently with other invocations.
+	 * 
+	 * @param indices The indices in the batch of the recipient's messages.
 	 */
-	private void processMessage(OMessage message, int leaf_offset, TreeSigBlob.Builder template) {
+	private void makeBundledProofs(BatchProofBuilder<byte[], byte[]> builder, int[] indices, int leaf_offset, int[] splicepoints, TreeSigBlob[] proofs) {
+		int leaves[] = new int[indices.length];
+		for (int j = 0; j < indices.length; j++)
+			leaves[j] = leaf_offset + indices[j];
+		proofs[indices[0]] = makeProof(builder, leaves, splicepoints[indices[0]]);
+		if (proofs[indices[0]] == null)
+			return;
+		for (int j = 1; j < indices.length; j++)
+			proofs[indices[j]] = TreeSigBlob.newBuilder()
+				.setTreeId(treeid)
+				.setLeaf(leaves[j])
+				.setBundleLeaf(leaves[0])
+				.buildPartial();
+	}
+
+	/** Build the signature blob for a message, less the signature, holding the appropriate pruned tree.
+	 * 
+	 * Only reads the history tree, so may run concurrently with other invocations.
+	 * 
+	 * @param splicepoint The version to splice to, or -1 for none.
+	 * @return The blob, or null if the proof could not be built.
+	 */
+	private TreeSigBlob makeProof(BatchProofBuilder<byte[], byte[]> builder, int leaf_offset, int splicepoint) {
+		return makeProof(builder, new int[] {leaf_offset}, splicepoint);
+	}
+
+	/**
+	 * Build the signature blob for the first of some messages, less the
+	 * signature, holding a pruned tree with all of their leaves.
+	 * 
+	 * @return The blob, or null if the proof could not be built.
+	 */
+	private TreeSigBlob makeProof(BatchProofBuilder<byte[], byte[]> builder, int[] leaves, int splicepoint) {
 		try {
-			//System.out.format("Processing leaf %d for recipient host %s\n",leaf_offset, message.getRecipient().toString());
-			// Make the pruned tree.
-			TreeBase<byte[], byte[]> pruned = histtree
-					.makePruned(new HashStore<byte[], byte[]>());
-			pruned.copyV(histtree, leaf_offset, true);
-
-			Object recipient = message.getRecipient();
-			if (lastcontacts.containsKey(recipient)) {
-				//System.out.println(lastcontacts.toString());
-				//System.out.println("Found a lastcontact at"+lastcontacts.get(recipient));
-				int lastcontact = lastcontacts.get(recipient);
-				if (lastcontact != histtree.version()) {
-					pruned.copyV(histtree, lastcontacts.get(recipient),false);
-					template.addSpliceHint(lastcontacts.get(recipient));
-				}
+			//System.out.format("Processing leaf %d\n",leaves[0]);
+			TreeSigBlob.Builder proof = TreeSigBlob.newBuilder();
+			int splices[] = null;
+			if (splicepoint >= 0 && splicepoint != histtree.version()) {
+				//System.out.println("Found a lastcontact at"+splicepoint);
+				splices = new int[] {splicepoint};
+				proof.addSpliceHint(splicepoint);
 			}
-			
-			PrunedTree.Builder treebuilder = PrunedTree.newBuilder();
-			pruned.serializeTree(treebuilder);
+			PrunedTree tree = buildProof(builder, leaves, splices);
 
-			template
+			return proof
 				.setTreeId(treeid)
-				.setTree(treebuilder)
-				.setLeaf(leaf_offset);
-			message.signatureResult(template.build());
+				.setTree(tree)
+				.setLeaf(leaves[0])
+				.buildPartial();
 		} catch (ProofError e) {
 			// Should never occur.
 			System.out.println("SHOULDNT OCCUR");
-			message.signatureResult(null); // Indicate error.
 			e.printStackTrace();
+			return null;
 		}
 	}
 }
@@ -26,9 +26,9 @@ import com.google.protobuf.ByteString;
 
 import edu.rice.batchsig.bench.Tracker;
 import edu.rice.historytree.AggregationInterface;
+import edu.rice.historytree.BatchProofBuilder;
 import edu.rice.historytree.MerkleTree;
 import edu.rice.historytree.ProofError;
-import edu.rice.historytree.TreeBase;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
@@ -36,41 +36,50 @@ import edu.rice.historytree.generated.Serialization.SignatureType;
 import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
 import edu.rice.historytree.storage.ArrayStore;
-import edu.rice.historytree.storage.HashStore;
 
 /** Sign a set of messages by placing them into a history tree.
  * 
  * A new merkle tree is used for each batch.
  */
-public class MerkleQueue extends QueueBase<OMessage> implements SuspendableProcessQueue<OMessage> {
+public class MerkleQueue extends QueueBase<OMessage> implements PipelinableQueue {
 	public MerkleQueue(SignaturePrimitives signer) {
 		super(signer);
 	}
 
 	@Override
 	public void process() {
+		SigningBatch batch = buildBatch();
+		if (batch == null)
+			return;
+		batch.sign();
+		batch.deliver();
+	}
+
+	@Override
+	public SigningBatch buildBatch() {
 		ArrayList<OMessage> oldqueue = atomicGetQueue();
 		if (oldqueue.size() == 0)
-			return;
+			return null;
 
 		Tracker.singleton.trackBatchSize(oldqueue.size());
 		
 		AggregationInterface<byte[], byte[]> aggobj = new SHA256Agg();
 		ArrayStore<byte[], byte[]> datastore = new ArrayStore<byte[], byte[]>();
-		MerkleTree<byte[], byte[]> merkletree = new MerkleTree<byte[], byte[]>(
+		final MerkleTree<byte[], byte[]> merkletree = new MerkleTree<byte[], byte[]>(
 				aggobj, datastore);
 
-		// Add all of the messages to the Merkle tree.
+		// Add all of the messages to the Merkle tree and freeze it, hashing on the worker pool if there is one.
+		ArrayList<byte[]> data = new ArrayList<byte[]>(oldqueue.size());
 		for (Message m : oldqueue) {
-			merkletree.append(m.getData());
+			data.add(m.getData());
 		}
-		merkletree.freeze();
+		merkletree.buildFrozen(data, getWorkerPool());
 
 		// At this point, everything is read-only. I can generate signatures and
 		// pruned trees concurrently.
 		// 
-		// The only data-dependency is on rootSig; I need to sign before I can
-		// generate the output messages.
+		// The proofs do not depend on the signature, so they are built here
+		// and the signature is merged into them when the batch is delivered.
 
 		final byte[] rootHash = merkletree.agg();
 
@@ -80,40 +89,35 @@ public class MerkleQueue extends QueueBase<OMessage> implements SuspendableProce
 			.setVersion(merkletree.version())
 			.setRoothash(ByteString.copyFrom(rootHash));
 
-		// Make the template sigblob containing the RSA signature.
+		// The template sigblob that will hold the RSA signature.
 		TreeSigBlob.Builder sigblob = TreeSigBlob.newBuilder();
 		sigblob.setSignatureType(SignatureType.SINGLE_MERKLE_TREE);
-		signer.sign(msgbuilder.build().toByteArray(), sigblob);
 
-		// Make the read-only template.
-		TreeSigBlob template = sigblob.build();
-				
-		for (int i = 0; i < oldqueue.size(); i++) {
-			processMessage(merkletree, oldqueue.get(i), i, TreeSigBlob.newBuilder(template));
-		}
+		// The tree is read-only from here on, so proofs may be built in parallel.
+		final BatchProofBuilder<byte[], byte[]> builder = new BatchProofBuilder<byte[], byte[]>(merkletree);
+		final TreeSigBlob proofs[] = new TreeSigBlob[oldqueue.size()];
+		forEachInBatch(oldqueue.size(), new BatchWork() {
+			public void process(int i) {
+				proofs[i] = makeProof(builder, i);
+			}
+		});
+		return new SigningBatch(signer, oldqueue, msgbuilder.build().toByteArray(), sigblob, proofs);
 	}
 	
-	/** Generate the pruned tree field for each message, given the template 
-	 * containing the public key signature. */
-	private void processMessage(TreeBase<byte[], byte[]> merkletree, OMessage message, int leaf, 
-			TreeSigBlob.Builder template) {	
+	/** Build the signature blob for a leaf, less the signature, holding its pruned tree.
+	 * @return The blob, or null if the proof could not be built. */
+	private TreeSigBlob makeProof(BatchProofBuilder<byte[], byte[]> builder, int leaf) {	
 		try {
-			// Make the pruned tree.
-			TreeBase<byte[], byte[]> pruned = merkletree
-					.makePruned(new HashStore<byte[], byte[]>());
-			pruned.copyV(merkletree, leaf, true);
-
-			PrunedTree.Builder treebuilder = PrunedTree.newBuilder();
-			pruned.serializeTree(treebuilder);
-
-			template
-					.setTree(treebuilder)
-					.setLeaf(leaf);
-			message.signatureResult(template.build());
+			PrunedTree tree = buildProof(builder, new int[] {leaf}, null);
+
+			return TreeSigBlob.newBuilder()
+					.setTree(tree)
+					.setLeaf(leaf)
+					.buildPartial();
 		} catch (ProofError e) {
 			// Should never occur.
-			message.signatureResult(null); // Indicate error.
 			e.printStackTrace();
+			return null;
 		}
 	}
 }
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig;
+
+/**
+ * A signing queue that can hand out each batch before its root is signed,
+ * so that signing and delivery can be pipelined with building the next
+ * batch. See PipelinedQueue.
+ */
+public interface PipelinableQueue extends SuspendableProcessQueue<OMessage> {
+	/**
+	 * Take the outstanding messages, put them into a tree, and build their
+	 * proofs. Batches are built in the order they will be signed in.
+	 * 
+	 * @return The batch, ready to be signed, or null if there were no messages.
+	 */
+	SigningBatch buildBatch();
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wrap a signing queue so that consecutive batches are signed in a
+ * pipeline. process() builds the tree and proofs of a batch on the calling
+ * thread, then hands the batch off to a signing thread, which in turn hands it
+ * to a delivery thread. Thus batch N+1 may be hashed into its tree while
+ * batch N is being signed and batch N-1 is being delivered.
+ * 
+ * At most MAX_INFLIGHT batches are waiting to be signed or delivered;
+ * process() blocks once the pipeline is full. Batches are signed and
+ * delivered in the order they were built. The messages and their signatures
+ * are the same as the wrapped queue would produce on its own. If signing a
+ * batch fails, each of its messages is handed a null signature, as when its
+ * proof cannot be built.
+ */
+public class PipelinedQueue implements SuspendableProcessQueue<OMessage> {
+	/** Number of batches that may be signed or delivered while the next is being built. */
+	public static final int MAX_INFLIGHT = 2;
+
+	private final PipelinableQueue queue;
+	/** One thread for each of the later stages, so batches stay in order. */
+	private final ExecutorService signstage = Executors.newSingleThreadExecutor();
+	private final ExecutorService deliverstage = Executors.newSingleThreadExecutor();
+	/** Permits for batches in the pipeline that have not yet been delivered. */
+	private final Semaphore inflight = new Semaphore(MAX_INFLIGHT);
+
+	public PipelinedQueue(PipelinableQueue queue) {
+		if (queue == null)
+			throw new NullPointerException();
+		this.queue = queue;
+	}
+
+	@Override
+	public void add(OMessage message) {
+		queue.add(message);
+	}
+
+	@Override
+	public int peekSize() {
+		return queue.peekSize();
+	}
+
+	@Override
+	public void suspendTillNonEmpty() {
+		queue.suspendTillNonEmpty();
+	}
+
+	/** Build the current batch and queue it to be signed and delivered. Returns without waiting for either. */
+	@Override
+	public void process() {
+		final SigningBatch batch = queue.buildBatch();
+		if (batch == null)
+			return;
+		inflight.acquireUninterruptibly();
+		signstage.execute(new Runnable() {
+			public void run() {
+				boolean signed = false;
+				try {
+					batch.sign();
+					signed = true;
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} catch (Error e) {
+					// Report the failure to the messages, but don't hide the error.
+					queueDelivery(batch, false);
+					throw e;
+				}
+				queueDelivery(batch, signed);
+			}
+		});
+	}
+
+	/**
+	 * Queue a batch to be delivered, in order. A batch that failed to sign
+	 * reports the failure to each message.
+	 */
+	private void queueDelivery(final SigningBatch batch, final boolean signed) {
+		deliverstage.execute(new Runnable() {
+			public void run() {
+				try {
+					if (signed)
+						batch.deliver();
+					else
+						batch.fail();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				} finally {
+					inflight.release();
+				}
+			}
+		});
+	}
+
+	/** Process anything outstanding, then wait for every batch to be delivered and stop the pipeline. */
+	@Override
+	public void finish() {
+		process();
+		signstage.shutdown();
+		awaitTermination(signstage);
+		deliverstage.shutdown();
+		awaitTermination(deliverstage);
+	}
+
+	private static void awaitTermination(ExecutorService stage) {
+		try {
+			while (!stage.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
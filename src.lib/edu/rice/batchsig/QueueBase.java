@@ -1,6 +1,12 @@
 package edu.rice.batchsig;
 
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.rice.historytree.BatchProofBuilder;
+import edu.rice.historytree.ProofError;
+import edu.rice.historytree.generated.Serialization.PrunedTree;
 
 /**
  * Common code shared by the different signing queue and verifying queue implementations.
@@ -15,6 +21,13 @@ abstract public class QueueBase<T> implements SuspendableProcessQueue<T> {
 	/** Underlying public key signature algorithm. */
 	protected final SignaturePrimitives signer;
 
+	/** Pool used to process the messages of a batch in parallel, or null to process them serially. */
+	private volatile ForkJoinPool workerpool = null;
+	/** Batches are not split across the pool into chunks smaller than this. */
+	private static final int BATCH_GRAIN = 64;
+	/** Send proofs in the compact positional encoding rather than as nested HistNodes. */
+	private volatile boolean compactproofs = false;
+
 	/** Construct a basic queue from the signer. */
 	QueueBase(SignaturePrimitives signer) {
 		if (signer == null)
@@ -28,6 +41,93 @@ abstract public class QueueBase<T> implements SuspendableProcessQueue<T> {
 		queue.add(m);
 	}
 
+	/**
+	 * Process the messages of each batch in parallel on the given pool, eg,
+	 * building their proofs. Pass null to process them serially on the
+	 * thread invoking process().
+	 */
+	public void setWorkerPool(ForkJoinPool pool) {
+		this.workerpool = pool;
+	}
+
+	/**
+	 * Send the pruned trees in the compact positional encoding, a flat run
+	 * of fixed-width digests, rather than as nested HistNodes. Verifiers
+	 * accept either.
+	 */
+	public void setCompactProofs(boolean compact) {
+		this.compactproofs = compact;
+	}
+
+	/**
+	 * Build the pruned tree for some leaves of a batch in the configured encoding.
+	 * 
+	 * @see BatchProofBuilder#makeProof(int[], int[], boolean)
+	 */
+	protected PrunedTree buildProof(BatchProofBuilder<byte[], byte[]> builder,
+			int[] leaves, int[] aggleaves) throws ProofError {
+		return builder.makeProof(leaves, aggleaves, compactproofs);
+	}
+
+	/** @return the pool set by setWorkerPool, or null. */
+	protected ForkJoinPool getWorkerPool() {
+		return workerpool;
+	}
+
+	/** Work to be done for each message of a batch. */
+	protected interface BatchWork {
+		/** Process the i'th message of the batch. May be invoked concurrently. */
+		void process(int i);
+	}
+
+	/**
+	 * Invoke the work on every message index in [0,size). Runs on the worker
+	 * pool, if any, splitting the range in half down to BATCH_GRAIN
+	 * messages. Returns once all of the work is done.
+	 */
+	protected void forEachInBatch(int size, BatchWork work) {
+		forEachInBatch(size, BATCH_GRAIN, work);
+	}
+
+	/**
+	 * Like forEachInBatch, but split the range down to the given grain, eg, 1
+	 * when each index is a large piece of work.
+	 */
+	protected void forEachInBatch(int size, int grain, BatchWork work) {
+		ForkJoinPool pool = workerpool;
+		if (pool == null || size < 2 * grain) {
+			for (int i = 0; i < size; i++)
+				work.process(i);
+		} else {
+			pool.invoke(new BatchTask(work, grain, 0, size));
+		}
+	}
+
+	/** Split a batch in half until the pieces are small enough to process serially. */
+	@SuppressWarnings("serial")
+	private static class BatchTask extends RecursiveAction {
+		final BatchWork work;
+		final int grain, lo, hi;
+
+		BatchTask(BatchWork work, int grain, int lo, int hi) {
+			this.work = work;
+			this.grain = grain;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= grain) {
+				for (int i = lo; i < hi; i++)
+					work.process(i);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			invokeAll(new BatchTask(work, grain, lo, mid), new BatchTask(work, grain, mid, hi));
+		}
+	}
+
 	@Override
 	public void finish() {
 		process();
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.batchsig;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
+import edu.rice.historytree.generated.Serialization.TreeSigMessage;
+
+/**
+ * Collect the messages of a batch by the root signature that covers them,
+ * so that each distinct signature is verified once and the result is shared
+ * with every message under it.
+ * 
+ * Messages are grouped by signer, signed data (tree type, version and root
+ * hash), and the signature itself. Including the signature means that a
+ * forged copy of a root signature is checked on its own, and neither
+ * rides on nor spoils the genuine one.
+ */
+public class SignedRootBatch {
+	/** Messages awaiting verification, by the signature over their root. */
+	private final LinkedHashMap<SignedRoot, ArrayList<IMessage>> groups = new LinkedHashMap<SignedRoot, ArrayList<IMessage>>();
+
+	/** Add a message whose proof has been checked up to the root in msgbuilder. */
+	public void add(IMessage message, TreeSigMessage.Builder msgbuilder) {
+		SignedRoot key = new SignedRoot(message.getSignatureBlob(), msgbuilder);
+		ArrayList<IMessage> group = groups.get(key);
+		if (group == null) {
+			group = new ArrayList<IMessage>();
+			groups.put(key, group);
+		}
+		group.add(message);
+	}
+
+	/** Number of distinct signatures outstanding. */
+	public int size() {
+		return groups.size();
+	}
+
+	/**
+	 * Verify each distinct signature once, and report the result to every
+	 * message under it.
+	 * 
+	 * @param cache
+	 *            The cache of verified roots. May be null.
+	 */
+	public void verify(SignaturePrimitives signer, VerifiedRootCache cache) {
+		for (Map.Entry<SignedRoot, ArrayList<IMessage>> e : groups.entrySet()) {
+			SignedRoot key = e.getKey();
+			boolean valid = Verifier.checkSig(signer, cache, key.sigblob, key.msgbuilder);
+			for (IMessage m : e.getValue())
+				m.signatureValidity(valid);
+		}
+		groups.clear();
+	}
+
+	/** The key that messages are grouped by. */
+	private static final class SignedRoot {
+		/** The signature blob of the first message in the group, used for verifying. */
+		final TreeSigBlob sigblob;
+		final TreeSigMessage.Builder msgbuilder;
+		final ByteString signeddata;
+		final int hash;
+
+		SignedRoot(TreeSigBlob sigblob, TreeSigMessage.Builder msgbuilder) {
+			this.sigblob = sigblob;
+			this.msgbuilder = msgbuilder;
+			this.signeddata = msgbuilder.build().toByteString();
+			this.hash = 31 * (31 * signeddata.hashCode() + sigblob.getSignerId().hashCode())
+					+ sigblob.getSignatureBytes().hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SignedRoot))
+				return false;
+			SignedRoot other = (SignedRoot) o;
+			return hash == other.hash
+					&& signeddata.equals(other.signeddata)
+					&& sigblob.getSignatureAlgorithm() == other.sigblob.getSignatureAlgorithm()
+					&& sigblob.getSignerId().equals(other.sigblob.getSignerId())
+					&& sigblob.getSignatureBytes().equals(other.sigblob.getSignatureBytes());
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.batchsig;
+
+import java.util.ArrayList;
+
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
+
+/**
+ * A batch of messages whose tree and proofs have been built, but whose root
+ * has not yet been signed.
+ * 
+ * Signing a batch is split into three stages: building the tree and the
+ * proofs (PipelinableQueue.buildBatch), signing the root (sign) and filling
+ * in and delivering each message's signature blob (deliver). Each stage may
+ * run on a different thread, so consecutive batches can overlap.
+ */
+public class SigningBatch {
+	private final SignaturePrimitives signer;
+	/** The messages in the batch. */
+	private final ArrayList<OMessage> messages;
+	/** The bytes to be signed, ie, the serialized TreeSigMessage over the root. */
+	private final byte[] tosign;
+	/** Holds the signature type until signed, then the signature too. */
+	private final TreeSigBlob.Builder sigblob;
+	/** The signature blob for each message, less the signature. Null if the proof could not be built. */
+	private final TreeSigBlob[] proofs;
+	/** The read-only signature fields common to every message. Set by sign(). */
+	private TreeSigBlob template = null;
+
+	SigningBatch(SignaturePrimitives signer, ArrayList<OMessage> messages,
+			byte[] tosign, TreeSigBlob.Builder sigblob, TreeSigBlob[] proofs) {
+		this.signer = signer;
+		this.messages = messages;
+		this.tosign = tosign;
+		this.sigblob = sigblob;
+		this.proofs = proofs;
+	}
+
+	/** Number of messages in the batch. */
+	public int size() {
+		return messages.size();
+	}
+
+	/** Sign the root of the batch. */
+	public void sign() {
+		signer.sign(tosign, sigblob);
+		template = sigblob.build();
+	}
+
+	/** Report to each message that the batch could not be signed. */
+	public void fail() {
+		for (OMessage m : messages)
+			m.signatureResult(null); // Indicate error.
+	}
+
+	/** Merge the signature into each message's proof and hand it to the message. */
+	public void deliver() {
+		if (template == null)
+			throw new IllegalStateException("Batch delivered before being signed");
+		for (int i = 0; i < messages.size(); i++) {
+			if (proofs[i] == null) {
+				messages.get(i).signatureResult(null); // Indicate error.
+				continue;
+			}
+			TreeSigBlob.Builder blob = TreeSigBlob.newBuilder(template).mergeFrom(proofs[i]);
+			// Later messages of a bundle are covered by the signature in the first.
+			if (proofs[i].hasBundleLeaf())
+				blob.clearSignatureBytes();
+			messages.get(i).signatureResult(blob.build());
+		}
+	}
+}
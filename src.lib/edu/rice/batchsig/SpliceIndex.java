@@ -0,0 +1,125 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.batchsig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * For each history tree, identified by (author, tree_id), the versions whose
+ * root hashes have been authenticated, either by a public key signature or
+ * by a splice from a later tree that was itself authenticated.
+ * 
+ * A proof whose root matches an authenticated version needs no public key
+ * verification. Note that this only works backwards in time: a splice from a
+ * new tree to an authenticated version does not authenticate the new tree.
+ * 
+ * Bounded in the number of trees and the number of versions of each, evicting
+ * the least recently used of each. Thread safe, so that the verifiers of
+ * several shards can share one index.
+ */
+public class SpliceIndex {
+	private final int maxversions;
+	private final LinkedHashMap<TreeKey, Versions> trees;
+
+	/**
+	 * @param maxtrees
+	 *            Number of history trees to remember.
+	 * @param maxversions
+	 *            Number of authenticated versions to remember in each tree.
+	 */
+	@SuppressWarnings("serial")
+	public SpliceIndex(final int maxtrees, int maxversions) {
+		this.maxversions = maxversions;
+		this.trees = new LinkedHashMap<TreeKey, Versions>(16, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<TreeKey, Versions> eldest) {
+				return this.size() > maxtrees;
+			}
+		};
+	}
+
+	/** @return The authenticated root hash of the tree at the given version, or null if unknown. */
+	public synchronized ByteString get(Object author, long treeid, int version) {
+		Versions versions = trees.get(new TreeKey(author, treeid));
+		if (versions == null)
+			return null;
+		return versions.get(version);
+	}
+
+	/** Record an authenticated root hash of the tree at the given version. */
+	public synchronized void put(Object author, long treeid, int version, ByteString roothash) {
+		TreeKey key = new TreeKey(author, treeid);
+		Versions versions = trees.get(key);
+		if (versions == null) {
+			versions = new Versions(maxversions);
+			trees.put(key, versions);
+		}
+		versions.put(version, roothash);
+	}
+
+	/** Number of history trees remembered. */
+	public synchronized int size() {
+		return trees.size();
+	}
+
+	/** The authenticated versions of one tree, in least recently used order. */
+	@SuppressWarnings("serial")
+	private static class Versions extends LinkedHashMap<Integer, ByteString> {
+		final int size_limit;
+
+		Versions(int size_limit) {
+			super(16, .75f, true);
+			this.size_limit = size_limit;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ByteString> eldest) {
+			return this.size() > size_limit;
+		}
+	}
+
+	/** A history tree instance. */
+	private static final class TreeKey {
+		final Object author;
+		final long treeid;
+
+		TreeKey(Object author, long treeid) {
+			this.author = author;
+			this.treeid = treeid;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * author.hashCode() + (int) (treeid ^ (treeid >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TreeKey))
+				return false;
+			TreeKey other = (TreeKey) o;
+			return treeid == other.treeid && author.equals(other.author);
+		}
+	}
+}
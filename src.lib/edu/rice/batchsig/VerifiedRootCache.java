@@ -0,0 +1,193 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.batchsig;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.generated.Serialization.SigTreeType;
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
+import edu.rice.historytree.generated.Serialization.TreeSigMessage;
+
+/**
+ * A size-bounded cache of tree roots whose public key signatures have already
+ * been verified, mapping (signer_id, tree type, tree_id, version) to the
+ * signed root hash. Once a root is in the cache, any later message whose
+ * proof leads to that same root is authentic without another public key
+ * operation.
+ * 
+ * Safe to share between verifiers on different threads. The entries are
+ * spread over several independently locked segments, each evicting its least
+ * recently used entry when full.
+ * 
+ * Merkle trees have no tree_id, so only the most recently verified Merkle
+ * root at each version is remembered.
+ */
+public class VerifiedRootCache {
+	/** Number of independently locked segments. */
+	private static final int SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/** Make a cache holding about 'capacity' roots. */
+	public VerifiedRootCache(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Cache capacity must be positive");
+		int perseg = (capacity + SEGMENTS - 1) / SEGMENTS;
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(perseg);
+	}
+
+	/** Has the root in msg already been verified for the signer of sigblob? */
+	public boolean contains(TreeSigBlob sigblob, TreeSigMessage msg) {
+		if (!msg.hasRoothash())
+			return false;
+		Key key = new Key(sigblob, msg);
+		Segment seg = segmentFor(key);
+		ByteString root;
+		synchronized (seg) {
+			root = seg.get(key);
+		}
+		if (root != null && root.equals(msg.getRoothash())) {
+			hits.incrementAndGet();
+			return true;
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/** Record that the signature on the root in msg has been verified. */
+	public void put(TreeSigBlob sigblob, TreeSigMessage msg) {
+		if (!msg.hasRoothash())
+			return;
+		Key key = new Key(sigblob, msg);
+		Segment seg = segmentFor(key);
+		synchronized (seg) {
+			seg.put(key, msg.getRoothash());
+		}
+	}
+
+	private Segment segmentFor(Key key) {
+		// Spread the hash, so that keys differing only in the version spread out.
+		int h = key.hash ^ (key.hash >>> 16);
+		return segments[(h & 0x7fffffff) % SEGMENTS];
+	}
+
+	/** Number of lookups that found a verified root. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Number of lookups that did not. */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Number of roots dropped to stay within the capacity. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Fraction of lookups that found a verified root. */
+	public double getHitRate() {
+		long h = hits.get(), total = h + misses.get();
+		return total == 0 ? 0.0 : (double) h / total;
+	}
+
+	/** Number of roots currently cached. */
+	public int size() {
+		int out = 0;
+		for (Segment seg : segments) {
+			synchronized (seg) {
+				out += seg.size();
+			}
+		}
+		return out;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RootCache: Size=%d Hits=%d Misses=%d HitRate=%.3f Evictions=%d",
+				size(), getHits(), getMisses(), getHitRate(), getEvictions());
+	}
+
+	/** One segment of the cache, in least recently used order. */
+	@SuppressWarnings("serial")
+	private class Segment extends LinkedHashMap<Key, ByteString> {
+		final int size_limit;
+
+		Segment(int size_limit) {
+			super(16, .75f, true);
+			this.size_limit = size_limit;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, ByteString> eldest) {
+			if (this.size() > size_limit) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/** The signed tree and version that a root belongs to. */
+	private static final class Key {
+		final ByteString signer;
+		final SigTreeType treetype;
+		final long treeid;
+		final int version;
+		final int hash;
+
+		Key(TreeSigBlob sigblob, TreeSigMessage msg) {
+			this.signer = sigblob.getSignerId();
+			this.treetype = msg.getTreetype();
+			this.treeid = sigblob.getTreeId();
+			this.version = msg.getVersion();
+			int h = signer.hashCode();
+			h = 31 * h + treetype.getNumber();
+			h = 31 * h + (int) (treeid ^ (treeid >>> 32));
+			this.hash = 31 * h + version;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return hash == other.hash && version == other.version
+					&& treeid == other.treeid && treetype == other.treetype
+					&& signer.equals(other.signer);
+		}
+	}
+}
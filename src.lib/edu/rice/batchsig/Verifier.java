@@ -19,14 +19,10 @@
 
 package edu.rice.batchsig;
 
-import java.util.Arrays;
-
-
 import com.google.protobuf.ByteString;
 
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.MerkleTree;
-import edu.rice.historytree.NodeCursor;
 import edu.rice.historytree.TreeBase;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
@@ -43,11 +39,23 @@ import edu.rice.historytree.storage.HashStore;
 abstract public class Verifier {
 	/** Store the signature primitives used in verifying */
 	protected final SignaturePrimitives signer;
+	/** Roots already verified, or null to verify every signature. */
+	private volatile VerifiedRootCache rootcache;
 
 	public Verifier(SignaturePrimitives signer) {
 		this.signer = signer;
 	}
 
+	/** Share a cache of verified roots, so their signatures are not verified again. */
+	public void setRootCache(VerifiedRootCache rootcache) {
+		this.rootcache = rootcache;
+	}
+
+	/** @return The cache of verified roots, or null if there is none. */
+	public VerifiedRootCache getRootCache() {
+		return rootcache;
+	}
+
 	/** Within each batch, add this message to be processed. */
 	public abstract void add(IMessage message);
 	/** At the end of each batch, process the batch. */
@@ -62,17 +70,7 @@ abstract public class Verifier {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 
 		// See if the message is in the tree.
-		NodeCursor<byte[], byte[]> leaf = parsed.leaf(sigblob.getLeaf());
-		if (leaf == null)
-			return false;
-		byte [] leafagg = leaf.getAgg();
-		byte [] msgagg = parsed.getAggObj().aggVal(message.getData());
-
-		
-		if (! Arrays.equals(msgagg,leafagg))
-			// Nope, we fail.
-			return false;
-		return true;
+		return parsed.leafMatches(sigblob.getLeaf(), message.getData());
 	}
 
 	/** Verify the public key signature. 
@@ -83,7 +81,26 @@ abstract public class Verifier {
 		byte[] signeddata = msgbuilder.build().toByteArray();
 		return signer.verify(signeddata, sigblob);
 	}
+
+	/**
+	 * Verify the public key signature, unless the cache says that the same
+	 * root has already been verified.
+	 * 
+	 * @param cache
+	 *            The cache of verified roots. May be null.
+	 * @return true if the signature matches.
+	 */
+	static public boolean checkSig(SignaturePrimitives signer, VerifiedRootCache cache, TreeSigBlob sigblob, TreeSigMessage.Builder msgbuilder) {
+		TreeSigMessage msg = msgbuilder.build();
+		if (cache != null && cache.contains(sigblob, msg))
+			return true;
+		boolean valid = signer.verify(msg.toByteArray(), sigblob);
+		if (valid && cache != null)
+			cache.put(sigblob, msg);
+		return valid;
+	}
+
 	public boolean checkSig(TreeSigBlob sigblob, TreeSigMessage.Builder msgbuilder) {
-		return checkSig(signer,sigblob,msgbuilder);
+		return checkSig(signer,rootcache,sigblob,msgbuilder);
 	}
 }
@@ -1,77 +1,109 @@
 package edu.rice.batchsig;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
 
 import edu.rice.historytree.HistoryTree;
+import edu.rice.historytree.generated.Serialization.SignatureType;
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 
 /**
  * Verify all of the spliced signed messages in the queue while try to exploit
  * available splices. Exploit any splices that happen to be between messages in
- * the queue.
+ * the queue, or to versions authenticated in earlier batches.
+ * 
+ * Also verifies bundled proofs. The tree of a bundle is remembered once it
+ * is authenticated, and the later messages of the bundle, which only carry
+ * their leaf, are checked against it. They must arrive in the same or a
+ * later batch than the first message of the bundle.
  */
 public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
+	/** Number of history trees whose authenticated versions are remembered. */
+	public static final int MAX_TREES = 1000;
+	/** Number of authenticated versions remembered for each history tree. */
+	public static final int MAX_VERSIONS = 256;
+	/** Number of authenticated bundle trees remembered. */
+	public static final int MAX_BUNDLES = 256;
+
+	/** Versions of each tree authenticated so far, kept from batch to batch. */
+	private final SpliceIndex spliceindex;
+	/** Authenticated trees of bundles, in least recently used order. */
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<BundleKey, HistoryTree<byte[], byte[]>> bundles =
+		new LinkedHashMap<BundleKey, HistoryTree<byte[], byte[]>>(16, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<BundleKey, HistoryTree<byte[], byte[]>> eldest) {
+				return this.size() > MAX_BUNDLES;
+			}
+		};
+
 	public VerifyHisttreeGroup(SignaturePrimitives signer) {
+		this(signer, new SpliceIndex(MAX_TREES, MAX_VERSIONS));
+	}
+
+	/** Make a verifier that remembers authenticated versions in the given index. */
+	public VerifyHisttreeGroup(SignaturePrimitives signer, SpliceIndex spliceindex) {
 		super(signer);
+		this.spliceindex = spliceindex;
 	}
 
 	@Override
-	protected void process(ArrayList<IMessage> l) {
+	protected void process(ArrayList<IMessage> all) {
+		// Messages that only point into a bundle are checked after the bundle trees are authenticated.
+		ArrayList<IMessage> l = new ArrayList<IMessage>(all.size());
+		ArrayList<IMessage> inbundle = new ArrayList<IMessage>();
+		for (IMessage m : all) {
+			if (m.getSignatureBlob().hasBundleLeaf())
+				inbundle.add(m);
+			else
+				l.add(m);
+		}
+
 		// Traverse in reverse order from most recent to earliest.
 		Collections.reverse(l);
 
 		/*
 		 * Algorithm: Traverse from the latest message to the earliest.
 		 * 
-		 * For each message, we see if we have a splice from a previously
-		 * verified message (a reverse-index of splicepoints to the
-		 * corresponding messages is stored in splices) If so, then verify the
-		 * splice. If not, or a bad splice check the signature. If a message
-		 * validates via one of these mechanisms, then this message is valid and
-		 * add its splicepoints to splices.
-		 */
-
-		/**
-		 * For each version number a confirmed valid message that claims to
-		 * splice the requested message
+		 * For each message, we see if the splice index holds an authenticated
+		 * root hash for its version, from a previously verified message in
+		 * this or an earlier batch. If so, then verify the splice. If not, or
+		 * a bad splice, check the signature. If a message validates via one
+		 * of these mechanisms, then this message is valid and its version and
+		 * splicepoints are added to the index.
 		 */
-		HashMap<Integer, IMessage> splices = new HashMap<Integer, IMessage>();
-
-		/** Cache of the parsed trees */
-		HashMap<IMessage, HistoryTree<byte[], byte[]>> trees = new HashMap<IMessage, HistoryTree<byte[], byte[]>>();
 
 		for (IMessage m : l) {
 			// System.out.format("*Checking message at leaf %d\n",m.getSignatureBlob().getLeaf());
 
 			boolean validated = false;
+			Object author = m.getAuthor();
+			long treeid = m.getSignatureBlob().getTreeId();
 			HistoryTree<byte[], byte[]> tree = HistTreeTools
 					.parseHistoryTree(m);
+			// The tree of a bundle is authenticated even if this message is bad, for the rest of the bundle.
+			boolean isbundle = m.getSignatureBlob().getSignatureType() == SignatureType.BUNDLED_HISTORY_TREE;
 
-			if (!Verifier.checkLeaf(m, tree)) {
+			boolean leafok = Verifier.checkLeaf(m, tree);
+			if (!leafok && !isbundle) {
 				m.signatureValidity(false);
 				continue;
 			}
 
 			int version = tree.version();
+			ByteString agg = ByteString.copyFrom(tree.agg());
 			// See if this message can be spliced on to something we already
 			// know about.
-			if (splices.containsKey(version)) {
-				IMessage latermsg = splices.get(version);
-				HistoryTree<byte[], byte[]> latertree = trees.get(latermsg);
+			ByteString known = spliceindex.get(author, treeid, version);
+			if (known != null) {
 				// Confirm the splice.
-				if (Arrays.equals(latertree.aggV(version), tree.agg())) {
-					// Splice is good! Is the message validated?
-					if (Verifier.checkLeaf(m, tree)) {
-						// And so is the message in it!
-						// System.out.format("Using verified splice %d in tree version %d\n",version,
-						// latertree.version());
-						validated = true;
-					} else {
-						System.out
-								.println("Broken proof that doesn't validate message in proof.");
-					}
+				if (known.equals(agg)) {
+					// Splice is good! And so is the message in it!
+					validated = true;
 				} else {
 					// BAD SPLICE.
 					System.out
@@ -82,7 +114,7 @@ public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
 			// No splice or invalid splice.
 			if (validated == false) {
 				// System.out.format("Splices do not have tree %d\n",version);
-				if (HistTreeTools.verifyHistoryRoot(signer, m, tree)) {
+				if (HistTreeTools.verifyHistoryRoot(signer, getRootCache(), m.getSignatureBlob(), version, agg)) {
 					validated = true; // GOOD signature.
 				} else {
 					System.out
@@ -90,29 +122,62 @@ public class VerifyHisttreeGroup extends VerifyHisttreeEagerlyBase {
 				}
 			}
 
-			// Put in a 'splice' for the tree's version
-			if (validated && !splices.containsKey(version)) {
-				// System.out.format("Store self-splice at %d with tree-version %d\n",tree.version(),version);
-				splices.put(tree.version(), m);
-				trees.put(m, tree);
-			}
-
-			// Save the splices, if any, of this message, if validated.
-			if (validated && m.getSignatureBlob().getSpliceHintCount() > 0) {
-				trees.put(m, tree);
+			if (validated) {
+				// Put in a 'splice' for the tree's version
+				if (known == null)
+					spliceindex.put(author, treeid, version, agg);
+				// Save the splices, if any, of this message.
 				for (int splice : m.getSignatureBlob().getSpliceHintList()) {
-					if (tree.leaf(splice) == null) {
+					if (splice > version || tree.leaf(splice) == null) {
 						// Claims it has splice, but doesn't have the leaf.
 						// System.out.println("Claims splice, but no splice included.");
 					} else {
 						// System.out.format("Store splice at %d with tree-version %d\n",
 						// splice, version);
-						splices.put(splice, m);
+						spliceindex.put(author, treeid, splice, ByteString.copyFrom(tree.aggV(splice)));
 					}
 				}
+				if (isbundle)
+					bundles.put(new BundleKey(author, treeid, m.getSignatureBlob().getLeaf()), tree);
 			}
 			// Now invoke the callback with the validity.
-			m.signatureValidity(validated);
+			m.signatureValidity(validated && leafok);
+		}
+
+		for (IMessage m : inbundle) {
+			TreeSigBlob sigblob = m.getSignatureBlob();
+			HistoryTree<byte[], byte[]> tree = bundles.get(
+					new BundleKey(m.getAuthor(), sigblob.getTreeId(), sigblob.getBundleLeaf()));
+			if (tree == null)
+				System.out.println("Bundle not authenticated, or first message not seen. Skip message");
+			m.signatureValidity(tree != null && sigblob.getLeaf() >= 0
+					&& sigblob.getLeaf() <= tree.version() && Verifier.checkLeaf(m, tree));
+		}
+	}
+
+	/** A bundle, identified by the leaf of its first message in a history tree instance. */
+	private static final class BundleKey {
+		final Object author;
+		final long treeid;
+		final int leaf;
+
+		BundleKey(Object author, long treeid, int leaf) {
+			this.author = author;
+			this.treeid = treeid;
+			this.leaf = leaf;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * author.hashCode() + (int) (treeid ^ (treeid >>> 32))) + leaf;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof BundleKey))
+				return false;
+			BundleKey other = (BundleKey) o;
+			return leaf == other.leaf && treeid == other.treeid && author.equals(other.author);
 		}
 	}
 
@@ -1,11 +1,14 @@
 package edu.rice.batchsig;
 
 import java.util.ArrayList;
-import edu.rice.historytree.HistoryTree;
+
+import edu.rice.historytree.PrunedTreeRoot;
 
 
 /** Verify each messages in the batch one at a time. */
 public class VerifyHisttreeSingle extends VerifyHisttreeEagerlyBase {
+	private final PrunedTreeRoot<byte[], byte[]> rootwalker = HistTreeTools.makeRootWalker();
+
 	public VerifyHisttreeSingle(SignaturePrimitives signer) {
 		super(signer);
 	}
@@ -13,8 +16,8 @@ public class VerifyHisttreeSingle extends VerifyHisttreeEagerlyBase {
 	@Override
 	protected void process(ArrayList<IMessage> l) {
 		for (IMessage m : l) {
-			HistoryTree<byte[], byte[]> tree = HistTreeTools.parseHistoryTree(m);			
-			m.signatureValidity(Verifier.checkLeaf(m, tree) && HistTreeTools.verifyHistoryRoot(signer,m,tree));
+			// No splicing here, so skip building the tree.
+			m.signatureValidity(HistTreeTools.verifyHistoryProof(signer, getRootCache(), m, rootwalker));
 		}
 	}
 }
\ No newline at end of file
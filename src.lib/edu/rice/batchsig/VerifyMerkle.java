@@ -3,6 +3,7 @@ package edu.rice.batchsig;
 import com.google.protobuf.ByteString;
 
 import edu.rice.historytree.MerkleTree;
+import edu.rice.historytree.PrunedTreeRoot;
 import edu.rice.historytree.aggs.SHA256Agg;
 import edu.rice.historytree.generated.Serialization.PrunedTree;
 import edu.rice.historytree.generated.Serialization.SigTreeType;
@@ -10,17 +11,27 @@ import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 import edu.rice.historytree.generated.Serialization.TreeSigMessage;
 import edu.rice.historytree.storage.HashStore;
 
-/** Verify Merkle tree signatures */
+/**
+ * Verify Merkle tree signatures. Proofs are checked as they are added. The
+ * signatures are verified in process(), once for each distinct root
+ * signature in the batch.
+ */
 public class VerifyMerkle extends Verifier {
 	static public MerkleTree<byte[],byte[]> parseMerkleTree(IMessage message) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
 		PrunedTree pb=sigblob.getTree();
 		MerkleTree<byte[],byte[]> tree= new MerkleTree<byte[],byte[]>(new SHA256Agg(),new HashStore<byte[],byte[]>());
 		tree.updateTime(pb.getVersion());
-		tree.parseTree(pb);
+		// The verifier has the message, so skip copying its value out of the proof.
+		tree.parseTree(pb, false);
 		return tree;
 	}
 
+	/** Recomputes the root straight from each proof, without parsing a tree. */
+	private final PrunedTreeRoot<byte[], byte[]> rootwalker = PrunedTreeRoot.forMerkleTree(new SHA256Agg());
+	/** Messages with a good proof, waiting on their root signature. */
+	private final SignedRootBatch pending = new SignedRootBatch();
+
 	public VerifyMerkle(SignaturePrimitives signer) {
 		super(signer);
 	}
@@ -28,25 +39,25 @@ public class VerifyMerkle extends Verifier {
 	@Override
 	public void add(IMessage message) {
 		TreeSigBlob sigblob = message.getSignatureBlob();
+		PrunedTree pb = sigblob.getTree();
 
-		// Parse the tree.
-		MerkleTree<byte[], byte[]> parsed = parseMerkleTree(message);
-
-		// See if the message is in the tree.
-		if (!checkLeaf(message, parsed))
+		// See if the message is in the tree, and get the root hash if it is.
+		final byte[] rootHash = rootwalker.rootIfLeafMatches(pb, sigblob.getLeaf(), message.getData());
+		if (rootHash == null) {
 			message.signatureValidity(false);
-		
-		final byte[] rootHash = parsed.agg();
+			return;
+		}
+
 		TreeSigMessage.Builder msgbuilder = TreeSigMessage.newBuilder()
 			.setTreetype(SigTreeType.MERKLE_TREE)
-			.setVersion(parsed.version())
+			.setVersion(pb.getVersion())
 			.setRoothash(ByteString.copyFrom(rootHash));
 
-		message.signatureValidity(checkSig(sigblob, msgbuilder));
+		pending.add(message, msgbuilder);
 	}
 	
 	@Override
 	public void process() {
-		// We verify them when we add them. 
+		pending.verify(signer, getRootCache());
 	}
 }
@@ -24,6 +24,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import edu.rice.historytree.HistoryTree;
 import edu.rice.historytree.generated.Serialization.SignatureType;
@@ -35,25 +36,77 @@ import edu.rice.historytree.generated.Serialization.TreeSigBlob;
  * implementations into a ProcessQueue. Demultiplexes messages that have Merkle
  * signatures, simple signatures, or spliced signatures and calls the
  * appropriate underlying verifier.
+ * 
+ * With a worker pool, the messages of each batch are sharded by author and
+ * tree_id, and the shards are verified in parallel, each with its own set of
+ * verifiers. Messages within a shard are verified in the order they were
+ * added. The SignaturePrimitives and the signatureValidity() callbacks of
+ * the messages must then be thread safe. The shards share one index of
+ * authenticated splices, so it survives changing the number of shards.
  */
 public class VerifyQueue extends QueueBase<IMessage> implements SuspendableProcessQueue<IMessage> {
-	/** The verifier used to handle Merkle signatures */
-	private VerifyMerkle merkleverifier;
-	/** The verifier used to handle simple signatures. */
-	private VerifySimple atomicverifier;
-	/** The verifier used to handle spliced signatures */
-	private VerifyHisttreeEagerlyBase histtreeverifier;
+	/** Default number of verified roots remembered. */
+	public static final int ROOT_CACHE_SIZE = 4096;
+	/** Shards per worker thread, so one busy signer does not idle the rest of the pool. */
+	private static final int SHARDS_PER_THREAD = 4;
+
+	/** The verifiers for each shard. Just one without a worker pool. */
+	private volatile Shard[] shards;
+	/** Versions of each history tree authenticated so far, shared by every shard. */
+	private final SpliceIndex spliceindex =
+		new SpliceIndex(VerifyHisttreeGroup.MAX_TREES, VerifyHisttreeGroup.MAX_VERSIONS);
+	/** Roots already verified, shared by every shard. */
+	private volatile VerifiedRootCache rootcache;
 	
 	public VerifyQueue(SignaturePrimitives signer) {
 		super(signer);
-		this.merkleverifier = new VerifyMerkle(signer);
-		this.atomicverifier = new VerifySimple(signer);
-		this.histtreeverifier = new VerifyHisttreeGroup(signer);
+		this.rootcache = new VerifiedRootCache(ROOT_CACHE_SIZE);
+		this.shards = makeShards(1);
 	}
-	
+
+	/** Use the given cache of verified roots, eg, one shared by several queues. */
+	public void setRootCache(VerifiedRootCache rootcache) {
+		this.rootcache = rootcache;
+		for (Shard shard : shards)
+			shard.setRootCache(rootcache);
+	}
+
+	/** @return The cache of verified roots, for its statistics. */
+	public VerifiedRootCache getRootCache() {
+		return rootcache;
+	}
+
+	/**
+	 * Verify independent signers in parallel on the given pool, or serially
+	 * if null. Must not be called while a batch is being processed.
+	 */
+	@Override
+	public void setWorkerPool(ForkJoinPool pool) {
+		super.setWorkerPool(pool);
+		shards = makeShards(pool == null ? 1 : pool.getParallelism() * SHARDS_PER_THREAD);
+	}
+
+	private Shard[] makeShards(int count) {
+		Shard[] out = new Shard[count];
+		for (int i = 0; i < count; i++) {
+			out[i] = new Shard(signer, spliceindex);
+			out[i].setRootCache(rootcache);
+		}
+		return out;
+	}
+
+	/** Which shard handles messages from this author and tree? */
+	private static int shardFor(IMessage m, int count) {
+		long treeid = m.getSignatureBlob().getTreeId();
+		int h = 31 * m.getAuthor().hashCode() + (int) (treeid ^ (treeid >>> 32));
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % count;
+	}
+
 	@Override
 	public void process() {
 		ArrayList<IMessage> oldqueue = atomicGetQueue();
+		final Shard[] shards = this.shards;
 
 		// Go over each message
 		for (IMessage m : oldqueue) {
@@ -61,21 +114,66 @@ public class VerifyQueue extends QueueBase<IMessage> implements SuspendableProce
 				System.err.println("Null message in queue?");
 				continue;
 			}
-			TreeSigBlob sigblob = m.getSignatureBlob();
-
-			// Dispatch based on the type. 
-			if (sigblob.getSignatureType() == SignatureType.SINGLE_MESSAGE) {
-				atomicverifier.add(m);
-			} else if (sigblob.getSignatureType() == SignatureType.SINGLE_MERKLE_TREE) {
-				merkleverifier.add(m);
-			} else if (sigblob.getSignatureType() == SignatureType.SINGLE_HISTORY_TREE) {
-				histtreeverifier.add(m);
-			} else {
-				System.out.println("Unrecognized SignatureType");
+			if (shards.length == 1)
+				shards[0].add(m);
+			else
+				shards[shardFor(m, shards.length)].add(m);
+		}
+		forEachInBatch(shards.length, 1, new BatchWork() {
+			public void process(int i) {
+				shards[i].process();
+			}
+		});
+	}
+
+	/** The verifiers for one shard of the messages. Only used by one thread at a time. */
+	private static class Shard {
+		/** The verifier used to handle Merkle signatures */
+		private final VerifyMerkle merkleverifier;
+		/** The verifier used to handle simple signatures. */
+		private final VerifySimple atomicverifier;
+		/** The verifier used to handle spliced signatures */
+		private final VerifyHisttreeEagerlyBase histtreeverifier;
+		/** Messages of this batch not yet handed to the verifiers. */
+		private final ArrayList<IMessage> messages = new ArrayList<IMessage>();
+
+		Shard(SignaturePrimitives signer, SpliceIndex spliceindex) {
+			this.merkleverifier = new VerifyMerkle(signer);
+			this.atomicverifier = new VerifySimple(signer);
+			this.histtreeverifier = new VerifyHisttreeGroup(signer, spliceindex);
+		}
+
+		void setRootCache(VerifiedRootCache rootcache) {
+			merkleverifier.setRootCache(rootcache);
+			histtreeverifier.setRootCache(rootcache);
+		}
+
+		void add(IMessage m) {
+			messages.add(m);
+		}
+
+		void process() {
+			if (messages.isEmpty())
+				return;
+			for (IMessage m : messages) {
+				TreeSigBlob sigblob = m.getSignatureBlob();
+
+				// Dispatch based on the type. 
+				if (sigblob.getSignatureType() == SignatureType.SINGLE_MESSAGE) {
+					atomicverifier.add(m);
+				} else if (sigblob.getSignatureType() == SignatureType.SINGLE_MERKLE_TREE) {
+					merkleverifier.add(m);
+				} else if (sigblob.getSignatureType() == SignatureType.SINGLE_HISTORY_TREE
+						|| sigblob.getSignatureType() == SignatureType.BUNDLED_HISTORY_TREE) {
+					histtreeverifier.add(m);
+				} else {
+					System.out.println("Unrecognized SignatureType");
+				}
 			}
+			messages.clear();
+			atomicverifier.process();
+			merkleverifier.process();
+			histtreeverifier.process();
 		}
-		atomicverifier.process();
-		merkleverifier.process();
-		histtreeverifier.process();
 	}
 }
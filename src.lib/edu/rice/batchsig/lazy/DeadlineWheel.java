@@ -0,0 +1,201 @@
+package edu.rice.batchsig.lazy;
+
+import java.util.ArrayList;
+
+/**
+ * A hierarchical timing wheel, used to force lazily verified messages by
+ * their deadlines.
+ * 
+ * Time is cut into ticks of a fixed resolution. Each level of the wheel has
+ * SLOTS slots, each covering SLOTS times as many ticks as a slot of the level
+ * below. An item is put into the lowest level whose span covers its
+ * deadline, and is moved down a level each time its slot in the level above
+ * comes around, so scheduling and expiring an item are O(1) amortized.
+ * Items due in the same tick come out together.
+ * 
+ * Items are never cancelled. The caller should skip expired items that no
+ * longer need anything done.
+ * 
+ * NOT multithread safe.
+ */
+class DeadlineWheel<T> {
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+
+	/** An item along with the tick it is due. */
+	private static class Entry<T> {
+		final T item;
+		final long tick;
+
+		Entry(T item, long tick) {
+			this.item = item;
+			this.tick = tick;
+		}
+	}
+
+	/** Milliseconds per tick. */
+	private final long resolution;
+	/** The slots of each level; null until something is put in them. */
+	private final ArrayList<Entry<T>>[][] wheels;
+	/** Items due further out than the top level spans. */
+	private final ArrayList<Entry<T>> overflow = new ArrayList<Entry<T>>();
+	/** Items scheduled after they were already due. */
+	private final ArrayList<Entry<T>> due = new ArrayList<Entry<T>>();
+	/** The next tick to be expired. */
+	private long current;
+	/** Number of items in the wheel. */
+	private int size = 0;
+	/** Number of items in the bottom level. */
+	private int bottomsize = 0;
+
+	/**
+	 * @param resolution
+	 *            Milliseconds per tick. Items may come out up to this much
+	 *            before their deadline.
+	 * @param now
+	 *            The current time in milliseconds.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	DeadlineWheel(long resolution, long now) {
+		if (resolution <= 0)
+			throw new IllegalArgumentException("Resolution must be positive");
+		this.resolution = resolution;
+		this.wheels = new ArrayList[LEVELS][SLOTS];
+		this.current = now / resolution;
+	}
+
+	/** @return the number of items in the wheel. */
+	int size() {
+		return size;
+	}
+
+	/** Schedule an item to come out at the given time in milliseconds. */
+	void schedule(T item, long deadline) {
+		insert(new Entry<T>(item, Math.max(deadline, 0) / resolution));
+		size++;
+	}
+
+	/** @return every item due at or before the given time in milliseconds, in order of deadline. */
+	ArrayList<T> advance(long now) {
+		long target = now / resolution;
+		ArrayList<T> out = new ArrayList<T>();
+		take(due, out);
+		while (current <= target) {
+			if (size == 0) {
+				current = target + 1;
+				break;
+			}
+			ArrayList<Entry<T>> slot = wheels[0][(int) (current & MASK)];
+			if (slot != null) {
+				bottomsize -= slot.size();
+				take(slot, out);
+			}
+			current++;
+			if ((current & MASK) != 0 && bottomsize == 0) {
+				// Nothing more in the bottom level, so skip ahead to where the next level cascades.
+				long next = (current | MASK) + 1;
+				if (next > target + 1) {
+					current = target + 1;
+					break;
+				}
+				current = next;
+			}
+			if ((current & MASK) == 0)
+				cascade();
+		}
+		return out;
+	}
+
+	/**
+	 * @return a time in milliseconds at or before which the earliest item is
+	 *         due, or Long.MAX_VALUE if there is none. May be earlier than
+	 *         the item's deadline, but calling advance() then makes progress.
+	 */
+	long nextDeadline() {
+		if (size == 0)
+			return Long.MAX_VALUE;
+		if (!due.isEmpty())
+			return 0;
+		long best = Long.MAX_VALUE;
+		for (int k = 0; k < SLOTS && bottomsize > 0; k++)
+			if (!isEmpty(wheels[0][(int) ((current + k) & MASK)])) {
+				best = current + k;
+				break;
+			}
+		for (int level = 1; level < LEVELS; level++) {
+			long base = current >> (BITS * level);
+			for (int k = 1; k <= SLOTS; k++)
+				if (!isEmpty(wheels[level][(int) ((base + k) & MASK)])) {
+					best = Math.min(best, (base + k) << (BITS * level));
+					break;
+				}
+		}
+		if (!overflow.isEmpty())
+			best = Math.min(best, ((current >> (BITS * (LEVELS - 1))) + 1) << (BITS * (LEVELS - 1)));
+		return best * resolution;
+	}
+
+	/** Put an entry into the slot for its tick, relative to the current tick. */
+	private void insert(Entry<T> e) {
+		long delta = e.tick - current;
+		if (delta < 0) {
+			due.add(e);
+			return;
+		}
+		for (int level = 0; level < LEVELS; level++) {
+			if (delta < 1L << (BITS * (level + 1))) {
+				int index = (int) ((e.tick >> (BITS * level)) & MASK);
+				if (wheels[level][index] == null)
+					wheels[level][index] = new ArrayList<Entry<T>>();
+				wheels[level][index].add(e);
+				if (level == 0)
+					bottomsize++;
+				return;
+			}
+		}
+		overflow.add(e);
+	}
+
+	/**
+	 * The current tick is at the start of a bottom level span. Move the
+	 * entries in the slot of each level whose span starts here down, from
+	 * the top level down, so they land in the right lower slots.
+	 */
+	private void cascade() {
+		int top = 1;
+		while (top < LEVELS - 1 && (current & ((1L << (BITS * (top + 1))) - 1)) == 0)
+			top++;
+		if (top == LEVELS - 1 && (current & ((1L << (BITS * top)) - 1)) == 0)
+			reinsert(overflow);
+		for (int level = top; level >= 1; level--) {
+			if ((current & ((1L << (BITS * level)) - 1)) != 0)
+				continue;
+			ArrayList<Entry<T>> slot = wheels[level][(int) ((current >> (BITS * level)) & MASK)];
+			if (slot != null)
+				reinsert(slot);
+		}
+	}
+
+	private void reinsert(ArrayList<Entry<T>> entries) {
+		if (entries.isEmpty())
+			return;
+		ArrayList<Entry<T>> moving = new ArrayList<Entry<T>>(entries);
+		entries.clear();
+		for (Entry<T> e : moving)
+			insert(e);
+	}
+
+	/** Move the items out of the entries into the output. */
+	private void take(ArrayList<Entry<T>> entries, ArrayList<T> out) {
+		for (Entry<T> e : entries)
+			out.add(e.item);
+		size -= entries.size();
+		entries.clear();
+	}
+
+	private static boolean isEmpty(ArrayList<?> slot) {
+		return slot == null || slot.isEmpty();
+	}
+}
@@ -0,0 +1,55 @@
+package edu.rice.batchsig.lazy;
+
+import java.util.ArrayList;
+
+import edu.rice.batchsig.IMessage;
+
+/**
+ * The deadlines of the messages held by a lazy verifier, under a bound on
+ * how long each message may wait before it is forced.
+ * 
+ * The wheel is only made once a message is scheduled under a bound, so a
+ * verifier without one pays nothing.
+ * 
+ * NOT multithread safe.
+ */
+class Deadlines {
+	/** Resolution of the deadlines, in milliseconds. Messages due within one tick are forced together. */
+	static final long RESOLUTION = 10;
+
+	/** Longest a message may wait before it is forced, in milliseconds, or 0 for no limit. */
+	private long latencybound = 0;
+
+	/** The deadline of each message, if there is a latency bound. */
+	private DeadlineWheel<IMessage> wheel = null;
+
+	/** @see VerifyLazily#setLatencyBound(long) */
+	void setLatencyBound(long millis) {
+		this.latencybound = millis;
+	}
+
+	/** Schedule a message just added to the verifier, if there is a latency bound. */
+	void schedule(IMessage m) {
+		if (latencybound <= 0)
+			return;
+		long now = System.currentTimeMillis();
+		if (wheel == null)
+			wheel = new DeadlineWheel<IMessage>(RESOLUTION, now);
+		wheel.schedule(m, now + latencybound);
+	}
+
+	/**
+	 * @return every message due at or before the given time in milliseconds.
+	 *         Some may have been forced already.
+	 */
+	ArrayList<IMessage> advance(long now) {
+		if (wheel == null)
+			return new ArrayList<IMessage>();
+		return wheel.advance(now);
+	}
+
+	/** @see VerifyLazily#nextDeadline() */
+	long nextDeadline() {
+		return wheel == null ? Long.MAX_VALUE : wheel.nextDeadline();
+	}
+}
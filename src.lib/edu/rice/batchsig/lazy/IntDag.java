@@ -0,0 +1,308 @@
+package edu.rice.batchsig.lazy;
+
+import java.util.Arrays;
+
+/**
+ * A directed acyclic graph over int keys, used to track the dependencies
+ * between the messages of one history tree by their leaf number.
+ * 
+ * Unlike Dag, keys are never boxed and the edges of each node are kept in
+ * int arrays rather than in shared multimaps. Each node lives in a dense
+ * slot, reused once the node is removed, that is found through an open
+ * addressing table from its key.
+ */
+public class IntDag {
+	/** Marks an unused entry in the table. */
+	private static final int EMPTY = -1;
+	private static final int INITIAL_SLOTS = 16;
+
+	/** Open addressing table, with linear probing, from the hash of a key to its slot. */
+	private int[] table;
+	/** The key of each slot. */
+	private int[] slotkey;
+	/** The parents and children of each slot, as slots. Only the first nparents or nchildren are used. */
+	private int[][] parents, children;
+	private int[] nparents, nchildren;
+	/** Slots freed by remove(), to be reused first. */
+	private int[] freeslots;
+	private int nfree = 0;
+	/** Number of slots handed out so far. */
+	private int nslots = 0;
+	/** Number of nodes in the dag. */
+	private int size = 0;
+	/** Per slot marks for getAllChildren(); clear between calls. */
+	private boolean[] marks;
+
+	public IntDag() {
+		table = new int[2 * INITIAL_SLOTS];
+		Arrays.fill(table, EMPTY);
+		slotkey = new int[INITIAL_SLOTS];
+		parents = new int[INITIAL_SLOTS][];
+		children = new int[INITIAL_SLOTS][];
+		nparents = new int[INITIAL_SLOTS];
+		nchildren = new int[INITIAL_SLOTS];
+		freeslots = new int[INITIAL_SLOTS];
+		marks = new boolean[INITIAL_SLOTS];
+	}
+
+	/** @return the number of nodes in the dag. */
+	public int size() {
+		return size;
+	}
+
+	/** @return true if there is a node for the key. */
+	public boolean contains(int key) {
+		return find(key) != EMPTY;
+	}
+
+	/** Make the node for a key, if there is none. */
+	public void add(int key) {
+		slotOf(key);
+	}
+
+	/** Add an edge to the dag from a parent to a child, making their nodes if needed. */
+	public void addEdge(int parent, int child) {
+		int p = slotOf(parent), c = slotOf(child);
+		if (indexOf(children[p], nchildren[p], c) >= 0)
+			return;
+		children[p] = append(children[p], nchildren[p]++, c);
+		parents[c] = append(parents[c], nparents[c]++, p);
+	}
+
+	/** Remove an edge in the dag from a parent to a child. */
+	public void removeEdge(int parent, int child) {
+		int p = find(parent), c = find(child);
+		if (p == EMPTY || c == EMPTY || indexOf(children[p], nchildren[p], c) < 0)
+			throw new Error("Problem, removing non-existant edge!!");
+		unlink(p, c);
+	}
+
+	/** @return the keys of the parents of a node, or an empty array if there is no node. */
+	public int[] getParents(int key) {
+		int slot = find(key);
+		if (slot == EMPTY)
+			return new int[0];
+		return keysOf(parents[slot], nparents[slot]);
+	}
+
+	/** @return the keys of the children of a node, or an empty array if there is no node. */
+	public int[] getChildren(int key) {
+		int slot = find(key);
+		if (slot == EMPTY)
+			return new int[0];
+		return keysOf(children[slot], nchildren[slot]);
+	}
+
+	/** Remove a node from the dag, including edges to its parents and children. */
+	public void remove(int key) {
+		int slot = find(key);
+		if (slot == EMPTY)
+			return;
+		while (nchildren[slot] > 0)
+			unlink(slot, children[slot][nchildren[slot] - 1]);
+		while (nparents[slot] > 0)
+			unlink(parents[slot][nparents[slot] - 1], slot);
+		parents[slot] = null;
+		children[slot] = null;
+		removeFromTable(key);
+		freeslots[nfree++] = slot;
+		size--;
+	}
+
+	/** @return the keys of all descendants of a node, including itself. */
+	public int[] getAllChildren(int key) {
+		int start = find(key);
+		if (start == EMPTY)
+			return new int[0];
+		// The output doubles as the work list.
+		int[] out = new int[8];
+		int n = 0;
+		out[n++] = start;
+		marks[start] = true;
+		for (int i = 0; i < n; i++) {
+			int slot = out[i];
+			for (int j = 0; j < nchildren[slot]; j++) {
+				int child = children[slot][j];
+				if (!marks[child]) {
+					marks[child] = true;
+					out = append(out, n++, child);
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			marks[out[i]] = false;
+			out[i] = slotkey[out[i]];
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/**
+	 * Represent a path in the DAG from a node to its parent until reaching the
+	 * root.
+	 */
+	class Path {
+		/** The keys of the nodes in the path. */
+		private int[] path = new int[8];
+		private int length = 0;
+
+		/** The key of the node in the path corresponding to the root. */
+		public int root() {
+			return path[length - 1];
+		}
+
+		/**
+		 * Extend this (incomplete) path continuing it until we reach the root.
+		 * A path in a DAG can be extended even if the DAG underneath it
+		 * changes, as long as every node in the path is still in the DAG.
+		 */
+		void extend() {
+			if (length == 0)
+				throw new Error("Cannot extend empty path?");
+			int slot = find(root());
+			while (nparents[slot] > 0) {
+				slot = parents[slot][0];
+				path = append(path, length++, slotkey[slot]);
+			}
+		}
+
+		/**
+		 * If this path is bad, remove the last node on it, and extend it and
+		 * try extending it again, until we get to another root.
+		 */
+		public void next() {
+			length--;
+			extend();
+		}
+
+		@Override
+		public String toString() {
+			return "{{ " + Arrays.toString(Arrays.copyOf(path, length)) + " }}";
+		}
+	}
+
+	/** Get a path from the node for the given key to a root. */
+	Path rootPath(int key) {
+		Path out = new Path();
+		out.path[out.length++] = key;
+		out.extend();
+		return out;
+	}
+
+	/** Remove the edge between two slots, which must exist. */
+	private void unlink(int p, int c) {
+		removeAt(children[p], nchildren[p], indexOf(children[p], nchildren[p], c));
+		nchildren[p]--;
+		removeAt(parents[c], nparents[c], indexOf(parents[c], nparents[c], p));
+		nparents[c]--;
+	}
+
+	private static int indexOf(int[] array, int length, int value) {
+		for (int i = 0; i < length; i++)
+			if (array[i] == value)
+				return i;
+		return -1;
+	}
+
+	/** Remove an element by moving the last one into its place. */
+	private static void removeAt(int[] array, int length, int i) {
+		array[i] = array[length - 1];
+	}
+
+	/** Store a value at the given position, growing the array if needed. */
+	private static int[] append(int[] array, int position, int value) {
+		if (array == null)
+			array = new int[2];
+		else if (position == array.length)
+			array = Arrays.copyOf(array, 2 * array.length);
+		array[position] = value;
+		return array;
+	}
+
+	private int[] keysOf(int[] slots, int length) {
+		int[] out = new int[length];
+		for (int i = 0; i < length; i++)
+			out[i] = slotkey[slots[i]];
+		return out;
+	}
+
+	private int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (table.length - 1);
+	}
+
+	/** @return the slot for a key, or EMPTY if there is none. */
+	private int find(int key) {
+		for (int i = hash(key); table[i] != EMPTY; i = (i + 1) & (table.length - 1))
+			if (slotkey[table[i]] == key)
+				return table[i];
+		return EMPTY;
+	}
+
+	/** @return the slot for a key, making it if there is none. */
+	private int slotOf(int key) {
+		int slot = find(key);
+		if (slot != EMPTY)
+			return slot;
+		if (nfree > 0) {
+			slot = freeslots[--nfree];
+		} else {
+			if (nslots == slotkey.length)
+				growSlots();
+			slot = nslots++;
+		}
+		slotkey[slot] = key;
+		nparents[slot] = 0;
+		nchildren[slot] = 0;
+		size++;
+		if (2 * size > table.length)
+			rehash(2 * table.length);
+		insertIntoTable(slot);
+		return slot;
+	}
+
+	private void growSlots() {
+		int n = 2 * slotkey.length;
+		slotkey = Arrays.copyOf(slotkey, n);
+		parents = Arrays.copyOf(parents, n);
+		children = Arrays.copyOf(children, n);
+		nparents = Arrays.copyOf(nparents, n);
+		nchildren = Arrays.copyOf(nchildren, n);
+		freeslots = Arrays.copyOf(freeslots, n);
+		marks = Arrays.copyOf(marks, n);
+	}
+
+	private void insertIntoTable(int slot) {
+		int i = hash(slotkey[slot]);
+		while (table[i] != EMPTY)
+			i = (i + 1) & (table.length - 1);
+		table[i] = slot;
+	}
+
+	private void rehash(int length) {
+		int[] old = table;
+		table = new int[length];
+		Arrays.fill(table, EMPTY);
+		for (int slot : old)
+			if (slot != EMPTY)
+				insertIntoTable(slot);
+	}
+
+	/** Remove a key from the table, shifting back later entries of its probe run. */
+	private void removeFromTable(int key) {
+		int mask = table.length - 1;
+		int i = hash(key);
+		while (slotkey[table[i]] != key)
+			i = (i + 1) & mask;
+		table[i] = EMPTY;
+		for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+			int home = hash(slotkey[table[j]]);
+			// Can the entry at j move back to i without going before its home?
+			boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!between) {
+				table[i] = table[j];
+				table[j] = EMPTY;
+				i = j;
+			}
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package edu.rice.batchsig.lazy;
 
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -10,6 +9,7 @@ import com.google.protobuf.ByteString;
 
 import edu.rice.batchsig.IMessage;
 import edu.rice.batchsig.SignaturePrimitives;
+import edu.rice.batchsig.VerifiedRootCache;
 import edu.rice.batchsig.Verifier;
 import edu.rice.batchsig.HistTreeTools;
 import edu.rice.historytree.HistoryTree;
@@ -21,15 +21,51 @@ public class OneTree {
 	
 	/** The public key signature primitives. */
 	final private SignaturePrimitives signer;
+	/** Roots already verified, or null. */
+	final private VerifiedRootCache rootcache;
 	
 	/** Map from an integer version number to the message at that version number. */
 	HashMap<Integer, IMessage> bundles = new LinkedHashMap<Integer, IMessage>(1,.75f, false);
 	
-	/** Cache of root hashes for each unvalidated bundle.
+	/** Cache of the parsed proofs of each unvalidated bundle.
 	 *    When we verify a splice, we need to take the predecessor's bundle agg() and compare it to aggV(pred.version).
-	 *    Rather than rebuild the pred's pruned tree, or cache the whole thing, just cache the parts we need, the agg().
+	 *    Rather than rebuild the pred's pruned tree, or cache the whole thing, just cache the parts we need, the agg()
+	 *    and the aggV() at its splice points, so that each proof is parsed only once.
 	 *  */
-	HashMap<Integer, ByteString> roothashes = new HashMap<Integer, ByteString>();
+	HashMap<Integer, Bundle> roothashes = new HashMap<Integer, Bundle>();
+
+	/** What is kept of the proofs of the messages in a bundle, all of which share one root. */
+	static class Bundle {
+		/** The version of the history tree at the bundle. */
+		final int version;
+		final ByteString roothash;
+		/** The splice points seen in the proofs, and the aggV() of the bundle's tree at each. */
+		private int[] splices = new int[0];
+		private ByteString[] spliceaggs = new ByteString[0];
+
+		Bundle(int version, ByteString roothash) {
+			this.version = version;
+			this.roothash = roothash;
+		}
+
+		/** Remember the aggV() of the bundle's tree at a splice point. */
+		void addSplice(int splice, ByteString agg) {
+			if (getSplice(splice) != null)
+				return;
+			splices = Arrays.copyOf(splices, splices.length + 1);
+			spliceaggs = Arrays.copyOf(spliceaggs, spliceaggs.length + 1);
+			splices[splices.length - 1] = splice;
+			spliceaggs[spliceaggs.length - 1] = agg;
+		}
+
+		/** @return the aggV() of the bundle's tree at a splice point, or null if no proof had it. */
+		ByteString getSplice(int splice) {
+			for (int i = 0; i < splices.length; i++)
+				if (splices[i] == splice)
+					return spliceaggs[i];
+			return null;
+		}
+	}
 
 	/**
 	 * This hashmap finds the message signatures we need to verify to validate a
@@ -56,7 +92,7 @@ public class OneTree {
 	 * if the splice fails.
 	 * 
 	 * */
-	final private Dag<Integer> dag = new Dag<Integer>();
+	final private IntDag dag = new IntDag();
 
 	/** Which author created the history tree that we are tracking? */
 	final private Object author;
@@ -65,9 +101,15 @@ public class OneTree {
 
 	/** Make a OneTree around a given author, treeid, and public key verification object. */
 	public OneTree(SignaturePrimitives signer, Object author, long treeid) {
+		this(signer, null, author, treeid);
+	}
+
+	/** Make a OneTree that skips verifying any root already in the cache. */
+	public OneTree(SignaturePrimitives signer, VerifiedRootCache rootcache, Object author, long treeid) {
 		this.author = author;
 		this.treeid = treeid;
 		this.signer = signer;
+		this.rootcache = rootcache;
 	}
 
 	
@@ -86,19 +128,13 @@ public class OneTree {
 		return treeid;
 	}
 
-	/** Make or get the node in the Dag corresponding to the given message. */
-	Dag<Integer>.DagNode getNode(IMessage m) {
-		Integer key = m.getSignatureBlob().getLeaf();
-		return dag.makeOrGet(key);
-	}
-
 		
 	/** Each node in the dag corresponds to a set of bundles. All that end in the same epoch. */
 	void addMessage(IMessage m) {
 		//System.out.println("\nAdding message "+m);
 		size++;
-		Integer key = m.getSignatureBlob().getLeaf();
-		Integer bundlekey = m.getSignatureBlob().getTree().getVersion();
+		int key = m.getSignatureBlob().getLeaf();
+		int bundlekey = m.getSignatureBlob().getTree().getVersion();
 		HistoryTree<byte[],byte[]> tree = HistTreeTools.parseHistoryTree(m);
 		ByteString agg = ByteString.copyFrom(tree.agg());
 		
@@ -111,9 +147,10 @@ public class OneTree {
 		}
 		
 		// First, have we seen this ending bundle before?
+		Bundle bundle = roothashes.get(bundlekey);
 		if (validators.containsKey(bundlekey)) {
 			// We got a bundle already. Does it have the same agg?
-			if (!roothashes.get(bundlekey).equals(agg)) {
+			if (!bundle.roothash.equals(agg)) {
 				// PROBLEM: Have an inconsistent bundle already.
 				// TODO: Can't handle these at all. Only solution: Verify it immediately.
 				throw new Error("TODO");
@@ -121,35 +158,36 @@ public class OneTree {
 			//System.out.println("Adding to existing bundle");
 		}
 		validators.put(bundlekey, m);
+		if (bundle == null)
+			bundle = new Bundle(bundlekey, agg);
 		
 		// At this point, we know that any keys in this bundle all have the same
 		// ending hash, ergo, the same contents. We don't have to worry about inconsistency
 		// anymore, and can just store the data, except for validating splices.
 
 		// Now, build an edge in the dag from the integer representing the bundle to this message.
-		Dag<Integer>.DagNode node = dag.makeOrGet(key);
-		Dag<Integer>.DagNode bundlenode = dag.makeOrGet(bundlekey);
+		dag.add(key);
+		dag.add(bundlekey);
 
 		// Add a dependency edge for the bundle.
-		if (!node.get().equals(bundlenode.get()))
-			dag.addEdge(bundlenode, node);
+		if (key != bundlekey)
+			dag.addEdge(bundlekey, key);
 		// And put the message in.
 		bundles.put(key,m);
 				
 		// PART 1: See if we've seen later bundles we might splice into.
 		// This case should be rare and only occur when bundles arrive out-of-order.
-		for (Dag<Integer>.DagNode succ : bundlenode.getParents()) {
+		for (int succi : dag.getParents(bundlekey)) {
 			// For each later message in the dag that provisionally splices this message.
 			//System.out.println("Looking at later bundles");
-			Integer succi = succ.get();
 			IMessage succm = bundles.get(succi);
 			if (succm == null)
 				throw new Error("Algorithm bug.");
-			// Time to verify the splice is OK. 
-			HistoryTree<byte[],byte[]> succtree = HistTreeTools.parseHistoryTree(succm);
-			if (Arrays.equals(succtree.aggV(bundlekey.intValue()),tree.agg())) {
+			// Time to verify the splice is OK, against what was kept when the successor was parsed.
+			Bundle succbundle = roothashes.get(succm.getSignatureBlob().getTree().getVersion());
+			if (succbundle != null && agg.equals(succbundle.getSplice(bundlekey))) {
 				System.out.println("Unusual splice circumstance -- success");
-				dag.addEdge(succ,bundlenode);
+				dag.addEdge(succi,bundlekey);
 			} else {
 				// Splice fails. Remove the edge.
 				System.out.println("Unusual splice circumstance -- failure & removal");
@@ -157,36 +195,47 @@ public class OneTree {
 		}
 			
 		// PART 2: See which prior bundles we splice into.
-		for (Integer predi : m.getSignatureBlob().getSpliceHintList()) {
-			ByteString aggv = ByteString.copyFrom(tree.aggV(predi.intValue()));
+		for (int predi : m.getSignatureBlob().getSpliceHintList()) {
+			ByteString aggv = ByteString.copyFrom(tree.aggV(predi));
+			bundle.addSplice(predi, aggv);
 			//System.out.format("Handling splicehint %d with hash %d\n",predi,aggv.hashCode());
 			// For each splicepoint to prior bundles in this message,
 			IMessage predm = validators.get(predi);
-			Dag<Integer>.DagNode prednode = dag.makeOrGet(predi);
+			dag.add(predi);
 			// Have we seen the prior message?
 			if (predm == null) {
 				//System.out.println("No priors found, but adding edge anyways.");
 				// Nope. Add the node to the dag. Add an edge to that child; it'll be provisional
-				dag.addEdge(node,prednode);
+				dag.addEdge(key,predi);
 			} else {
 				//System.out.format("Agg(%d)=%d of pred\n",predm.getSignatureBlob().getTree().getVersion(),roothashes.get(predi).hashCode());
 				// We have seen that message. We need to check the splice.
-				if (aggv.equals(roothashes.get(predi))) {
+				if (aggv.equals(roothashes.get(predi).roothash)) {
 					//System.out.println("Found a prior. Verified the splice!");
-					dag.addEdge(node,prednode);
+					dag.addEdge(key,predi);
 				} else {
 					// Splice fails. Remove the edge.
 					//System.out.println("Found a prior, but splice failed");
-					prednode = dag.makeOrGet(predi);
 				}
 			}
 		}
 		//System.out.format("Stored roothash at (%d) of %d of pred\n",bundlekey,agg.hashCode());
-		roothashes.put(bundlekey,agg);
+		roothashes.put(bundlekey,bundle);
 		bundles.put(key, m);
 		//System.out.println("Finished handling for message");
 	}
 
+	/** @return the root hash of the unvalidated bundle at the given version, or null. */
+	ByteString getRootHash(int version) {
+		Bundle bundle = roothashes.get(version);
+		return bundle == null ? null : bundle.roothash;
+	}
+
+	/** @return true if the message is still waiting to be verified here. */
+	boolean isPending(IMessage m) {
+		return bundles.get(m.getSignatureBlob().getLeaf()) == m;
+	}
+
 	/** Called to remove a real message from all tracking */
 	private void remove(IMessage m) {
 		int index = m.getSignatureBlob().getLeaf();
@@ -231,30 +280,26 @@ public class OneTree {
 			//return;
 		}
 		
-		Dag<Integer>.DagNode node = getNode(m);
-
 		// Step one: Find a root.
-		Dag<Integer>.Path rootPath = dag.rootPath(node);
+		IntDag.Path rootPath = dag.rootPath(m.getSignatureBlob().getLeaf());
 		// Step two, until we find a root whose signature verifies.
 		while (true) {
 			//System.out.println("WhileLoop at rootPath ="+rootPath);
-			Dag<Integer>.DagNode root = rootPath.root();
-			Integer rooti = root.get();
+			int rooti = rootPath.root();
 			// An incoming message that nominally validates the root bundle (may be more than one)
 			IMessage rootm = validators.get(rooti);
 			//System.out.format("Got root at %d about to see if it verifies %s\n",rooti,rootm);
-			HistoryTree<byte[], byte[]> roottree = HistTreeTools.parseHistoryTree(rootm);
+			Bundle rootbundle = roothashes.get(rooti);
 
-			// Verify the root's public key signature.
-			if (HistTreeTools.verifyHistoryRoot(signer, rootm, roottree)) {
+			// Verify the root's public key signature. Its proof was checked when it was added.
+			if (HistTreeTools.verifyHistoryRoot(signer, rootcache, rootm.getSignatureBlob(), rootbundle.version, rootbundle.roothash)) {
 				//System.out.println("Verified the root's signature - SUCCESS. It is valid");
 				// Success!
 				// Now traverse *all* descendents and mark them as good.
-				Collection<Dag<Integer>.DagNode> descendents = dag.getAllChildren(root);
-				for (Dag<Integer>.DagNode i : descendents) {
-					//System.out.println("Traversing descendent to mark as valid:"+i.get());
-					//Integer desci = i.get();
-					IMessage descm = bundles.get(i.get());
+				int[] descendents = dag.getAllChildren(rooti);
+				for (int i : descendents) {
+					//System.out.println("Traversing descendent to mark as valid:"+i);
+					IMessage descm = bundles.get(i);
 					if (descm != null) {
 						// TODO: Cache the spliced predecessor hashes from this node as being valid?
 						//System.out.println("... and marking it as good!");
@@ -264,8 +309,8 @@ public class OneTree {
 						remove(descm);
 					}
 					// Remove any vestiges of the node.
-					remove(i.get());
-					i.remove();
+					remove(i);
+					dag.remove(i);
 				}
 
 				//System.out.format("<<<<<< Done with handling force of %d to %s\n",m.getSignatureBlob().getLeaf(),getName());
@@ -20,19 +20,27 @@
 package edu.rice.batchsig.lazy;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Table;
+import com.google.protobuf.ByteString;
 
 import edu.rice.batchsig.IMessage;
 import edu.rice.batchsig.SignaturePrimitives;
 import edu.rice.batchsig.HistTreeTools;
+import edu.rice.batchsig.VerifiedRootCache;
+import edu.rice.batchsig.VerifyQueue;
 import edu.rice.batchsig.bench.Tracker;
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 
 /**
  * Copy of verifyqueuelazy, which takes loginlogout hints and tries to delay
@@ -81,6 +89,12 @@ import edu.rice.batchsig.bench.Tracker;
  * 
  * NOT multithread safe.
  * 
+ * Optionally, the newest root of each tree can be verified speculatively on
+ * a background executor, and recorded in the VerifiedRootCache. When that
+ * root is later forced, its signature is found in the cache, and validating
+ * the messages spliced to it takes only hash checks. Only immutable copies of
+ * the root are handed to the background threads.
+ * 
  * */
 
 public class VerifyHisttreeLazily implements
@@ -100,6 +114,18 @@ public class VerifyHisttreeLazily implements
 	/** The signer. */
 	private final SignaturePrimitives signer;
 
+	/** The deadline of each message, if there is a latency bound. */
+	private final Deadlines deadlines = new Deadlines();
+
+	/** Roots already verified, or null. */
+	private VerifiedRootCache rootcache;
+
+	/** Runs the speculative verifies, or null to not speculate. */
+	private Executor speculator = null;
+
+	/** The speculative verifies for each OneTree. */
+	private HashMap<OneTree, Speculation> speculations = new HashMap<OneTree, Speculation>();
+
 	/** Map from recipient_user to the messages queued to that recipient_user. */
 	private Multimap<Object, IMessage> userToMessages = HashMultimap.create();
 
@@ -147,7 +173,99 @@ public class VerifyHisttreeLazily implements
 	public VerifyHisttreeLazily(SignaturePrimitives signer) {
 		this.signer = signer;
 	}
+
+	/** Share a cache of verified roots with the trees made after this call. */
+	public void setRootCache(VerifiedRootCache rootcache) {
+		this.rootcache = rootcache;
+	}
 	
+	@Override
+	public void setLatencyBound(long millis) {
+		deadlines.setLatencyBound(millis);
+	}
+
+	/**
+	 * Speculatively verify the newest root of each tree on the given executor,
+	 * or null to stop. Applies to messages added after this call. The signer
+	 * must be thread safe. Makes a root cache if none has been set.
+	 */
+	public void setSpeculator(Executor speculator) {
+		if (speculator != null && rootcache == null)
+			rootcache = new VerifiedRootCache(VerifyQueue.ROOT_CACHE_SIZE);
+		this.speculator = speculator;
+	}
+
+	/** A root to verify in the background. Immutable, so it can be handed to another thread. */
+	private static class SpeculativeRoot {
+		final TreeSigBlob sigblob;
+		final int version;
+		final ByteString roothash;
+
+		SpeculativeRoot(TreeSigBlob sigblob, int version, ByteString roothash) {
+			this.sigblob = sigblob;
+			this.version = version;
+			this.roothash = roothash;
+		}
+	}
+
+	/**
+	 * The speculative verifies of one tree. At most one runs at a time, and
+	 * roots posted while it runs are coalesced, so only the newest is verified.
+	 */
+	private class Speculation implements Runnable {
+		/** Newest version posted. Only used by the verifier's thread. */
+		int newest = -1;
+		/** The root waiting to be verified, or null. */
+		private final AtomicReference<SpeculativeRoot> next = new AtomicReference<SpeculativeRoot>();
+		/** Is a run() scheduled or running? */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final Executor executor;
+
+		Speculation(Executor executor) {
+			this.executor = executor;
+		}
+
+		/** Verify this root in the background, in place of any older one still waiting. */
+		void post(SpeculativeRoot root) {
+			next.set(root);
+			if (scheduled.compareAndSet(false, true))
+				executor.execute(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				SpeculativeRoot root = next.getAndSet(null);
+				if (root == null) {
+					scheduled.set(false);
+					// Recheck, in case a root was posted before we cleared the flag.
+					if (next.get() == null || !scheduled.compareAndSet(false, true))
+						return;
+					continue;
+				}
+				// A valid root is put in the cache. An invalid one will be found when forced.
+				HistTreeTools.verifyHistoryRoot(signer, rootcache, root.sigblob, root.version, root.roothash);
+			}
+		}
+	}
+
+	/** Post the newest root of the tree, if m brought a newer one. */
+	private void speculate(OneTree tree, IMessage m) {
+		int version = m.getSignatureBlob().getTree().getVersion();
+		Speculation spec = speculations.get(tree);
+		if (spec == null) {
+			spec = new Speculation(speculator);
+			speculations.put(tree, spec);
+		}
+		if (version <= spec.newest)
+			return;
+		ByteString roothash = tree.getRootHash(version);
+		if (roothash == null)
+			return;
+		spec.newest = version;
+		spec.post(new SpeculativeRoot(m.getSignatureBlob(), version, roothash));
+	}
+
 	/** This message has been validated, can stop tracking it now. */
 	public void messageValidatorCallback(IMessage m, boolean valid) {
 		userToMessages.remove(m.getRecipientUser(), m);
@@ -163,7 +281,7 @@ public class VerifyHisttreeLazily implements
 	private OneTree makeOneTreeForMessage(IMessage m) {
 		OneTree out = getOneTreeForMessage(m);
 		if (out == null) {
-			out = new OneTree(signer, m.getAuthor(), m.getSignatureBlob()
+			out = new OneTree(signer, rootcache, m.getAuthor(), m.getSignatureBlob()
 					.getTreeId());
 			map1.put(m.getAuthor(), m.getSignatureBlob().getTreeId(), out);
 		}
@@ -179,6 +297,7 @@ public class VerifyHisttreeLazily implements
 		for (OneTree i : treesToForceAll) {
 			i.forceAll();
 			map1.remove(i.getAuthor(), i.getTreeid());
+			speculations.remove(i);
 		}
 		for (OneTree i : treesToForceOne)
 			if (!treesToForceAll.contains(i))
@@ -236,17 +355,47 @@ public class VerifyHisttreeLazily implements
 		expirationqueue.remove(x);
 	}
 
+	@Override
+	public void forceExpired(long now) {
+		for (IMessage m : deadlines.advance(now)) {
+			// Skip those already validated by forcing an earlier one.
+			OneTree tree = getOneTreeForMessage(m);
+			if (tree != null && tree.isPending(m)) {
+				m.resetCreationTimeNull();
+				tree.forceMessage(m);
+			}
+		}
+	}
+
+	@Override
+	public long nextDeadline() {
+		return deadlines.nextDeadline();
+	}
+
 	@Override
 	public void add(IMessage m) {
+		if (m.getSignatureBlob().hasBundleLeaf()) {
+			// Its tree is in another message of the bundle. Bundles are only verified by VerifyQueue.
+			System.out.println("Bundled message without a tree. Skip message");
+			m.signatureValidity(false);
+			return;
+		}
+		// Wrap it, so that we stop tracking it when it is validated through a splice.
+		WrappedIMessage msg = new WrappedIMessage(m);
+		msg.setCallback(this);
 		size.incrementAndGet();
+		// Track it first, as a broken proof is rejected, and untracked, while adding it.
+		userToMessages.put(m.getRecipientUser(), m);
 		OneTree tree = this.makeOneTreeForMessage(m);
-		tree.addMessage(m);
+		tree.addMessage(msg);
+		if (speculator != null && tree.isPending(msg))
+			speculate(tree, msg);
+		deadlines.schedule(msg);
 		if (tree.size() > MAX_TREE_SIZE) {
 			treesToForceOne.add(tree);
 			System.out.println("Expiration for too big tree.");
 		}
 		expirationqueue.put(tree, tree);
-		userToMessages.put(m.getRecipientUser(), m);
 		doExpire();
 	}
 
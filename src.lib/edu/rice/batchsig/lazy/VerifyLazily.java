@@ -21,4 +21,24 @@ public interface VerifyLazily {
 
 	/** Force all messages in the queue. */
 	void forceAll();
+
+	/**
+	 * Force each message no later than the given number of milliseconds
+	 * after it was added, or 0 for no limit. Applies to messages added after
+	 * this call.
+	 */
+	void setLatencyBound(long millis);
+
+	/**
+	 * Force every message that has waited out the latency bound, as of the
+	 * given time in milliseconds. Messages that come due together are forced
+	 * together.
+	 */
+	void forceExpired(long now);
+
+	/**
+	 * @return a time in milliseconds at or before which forceExpired() next
+	 *         has work to do, or Long.MAX_VALUE if there is none.
+	 */
+	long nextDeadline();
 }
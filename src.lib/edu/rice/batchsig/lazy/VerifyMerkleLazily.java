@@ -30,6 +30,7 @@ import com.google.common.collect.Multimap;
 
 import edu.rice.batchsig.IMessage;
 import edu.rice.batchsig.SignaturePrimitives;
+import edu.rice.batchsig.VerifiedRootCache;
 import edu.rice.batchsig.VerifyMerkle;
 import edu.rice.batchsig.bench.Tracker;
 
@@ -39,6 +40,9 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 	/** Maximum number of outstanding unverified messages before we force the oldest. */
 	private static final int MAX_MESSAGES = 20000;
 
+	/** The deadline of each message, if there is a latency bound. */
+	private final Deadlines deadlines = new Deadlines();
+
 	/** Track info for expiration. */
 	private TreeExpirationManager expirationqueue = new TreeExpirationManager(MAX_MESSAGES);
 
@@ -58,6 +62,16 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 		merkleverify = new VerifyMerkle(signer);
 	}
 
+	@Override
+	public void setLatencyBound(long millis) {
+		deadlines.setLatencyBound(millis);
+	}
+
+	/** Share a cache of verified roots with the underlying verifier. */
+	public void setRootCache(VerifiedRootCache rootcache) {
+		merkleverify.setRootCache(rootcache);
+	}
+
 	
 	/** This message has been validated, and we can stop tracking it now. */
 	public void messageValidatorCallback(IMessage m, boolean valid) {
@@ -90,6 +104,7 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 			merkleverify.add(m);
 			expirationqueue.remove(m);
 		}
+		merkleverify.process();
 	}
 	
 	@Override
@@ -102,6 +117,7 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 			m.resetCreationTimeNull();
 			merkleverify.add(m);
 		}
+		merkleverify.process();
 	}
 
 	@Override
@@ -115,8 +131,10 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 		}
 			
 		// Keep on trying until we expire an entry, if any exists.
-		if (expirationqueue.size() == 0)
+		if (expirationqueue.size() == 0) {
+			merkleverify.process();
 			return;
+		}
 		IMessage x = expirationqueue.keySet().iterator().next();
 		Tracker.singleton.idleforces++;
 		if (x == null)
@@ -124,18 +142,40 @@ public class VerifyMerkleLazily implements VerifyLazily, WrappedIMessage.Callbac
 
 		merkleverify.add(x);		
 		expirationqueue.remove(x);
+		merkleverify.process();
 	}
 	
+	@Override
+	public void forceExpired(long now) {
+		for (IMessage m : deadlines.advance(now)) {
+			// Skip those already forced.
+			if (expirationqueue.remove(m) != null) {
+				m.resetCreationTimeNull();
+				merkleverify.add(m);
+			}
+		}
+		// Each root shared by the messages that came due is verified once.
+		merkleverify.process();
+	}
+
+	@Override
+	public long nextDeadline() {
+		return deadlines.nextDeadline();
+	}
+
 	@Override
 	public void add(IMessage m) {
 		WrappedIMessage msg = new WrappedIMessage(m);
 		msg.setCallback(this);
 		size.incrementAndGet();
+		deadlines.schedule(msg);
 		//if (tree.size() > MAX_TREE_SIZE) {
 		//	System.out.println("Expiration for too big tree.");
 		//}
 		expirationqueue.put(msg,msg);
 		userToMessages.put(msg.getRecipientUser(), m);
+		// Verify anything that expired to make room.
+		merkleverify.process();
 	}
 
 	@Override
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * An aggregation of byte[] aggregates that can also work on aggregates read
+ * in place, through the views handed out by an AggBufferStore. Trees use it
+ * along with such a store to avoid copying old aggregates out.
+ */
+public interface AggBufferAggregation {
+	/**
+	 * Same as AggregationInterface.aggChildren(), on aggregates read in
+	 * place. rightAnn may be null.
+	 */
+	byte[] aggChildren(ByteBuffer leftAnn, ByteBuffer rightAnn);
+
+	/** Same as AggregationInterface.serializeAgg(), on an aggregate read in place. */
+	ByteString serializeAgg(ByteBuffer agg);
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A datastore of byte[] aggregates that can hand out a read-only view of an
+ * aggregate where it is stored, eg, in a memory mapped file. Trees use the
+ * view to hash and serialize old aggregates in place, rather than copying
+ * each one out with getAgg().
+ */
+public interface AggBufferStore {
+	/** @return A read-only view of the agg of the node, or null if it has not been set. */
+	ByteBuffer getAggBuffer(NodeCursor<?, ?> node);
+}
@@ -53,6 +53,13 @@ public interface AggregationInterface<A, V> {
 	A parseAgg(ByteString b);
 	/** Parse a ByteString to a value. */
 	V parseVal(ByteString b);
-	/** Make a clone of this aggregation with the same fields. */
+	/** Parse the aggregate in b[offset, offset+length), eg, one out of a run of digests. */
+	A parseAgg(ByteString b, int offset, int length);
+	/** Map from a serialized event to its aggregate, without parsing the event into a copy. */
+	A aggSerializedVal(ByteString b);
+	/** Is agg the aggregate of the event? May compare in place without building the aggregate. */
+	boolean aggValEquals(V event, A agg);
+	/** Make a clone of this aggregation with the same fields. Aggregators may
+	 * keep per-instance scratch state, so use a clone when handing one to another thread. */
 	AggregationInterface<A, V> clone();
 }
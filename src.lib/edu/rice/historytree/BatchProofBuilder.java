@@ -0,0 +1,224 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree;
+
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.generated.Serialization;
+
+/**
+ * Build the proofs for a batch of leaves straight out of a tree, without
+ * making a pruned tree in a fresh datastore for each.
+ * 
+ * A proof is the same as the one from serializing a pruned tree made with
+ * makePruned() and copyV(). The path to the last leaf of a history tree is
+ * in every proof, so the aggs of the stubs beside it are serialized once,
+ * when the builder is made; each proof then only reads the aggs beside the
+ * paths to its own leaves.
+ * 
+ * The tree must not change while the builder is in use. Proofs may be built
+ * concurrently.
+ */
+public class BatchProofBuilder<A, V> {
+	private final TreeBase<A, V> tree;
+	private final AggregationInterface<A, V> aggobj;
+	/** The leaf whose path is in every proof, or -1 for none. */
+	private final int frontier;
+	/** The serialized aggs of the stubs beside the path to the frontier, by layer, or null. */
+	private final ByteString[] frontierdigests;
+
+	/** Make a builder for proofs from a history tree, at its current version. */
+	public BatchProofBuilder(HistoryTree<A, V> tree) {
+		this(tree, tree.version());
+	}
+
+	/** Make a builder for proofs from a frozen Merkle tree. */
+	public BatchProofBuilder(MerkleTree<A, V> tree) {
+		this(tree, -1);
+		if (tree.isFrozen == false)
+			throw new Error("Attempt to make pruned trees out of a unfrozen merkle tree");
+	}
+
+	private BatchProofBuilder(TreeBase<A, V> tree, int frontier) {
+		this.tree = tree;
+		this.aggobj = tree.aggobj;
+		this.frontier = frontier;
+		this.frontierdigests = new ByteString[tree.root.layer() + 1];
+		NodeCursor<A, V> cursor = tree.root.copy();
+		for (int layer = 0; frontier >= 0 && layer < tree.root.layer(); layer++) {
+			int index = (frontier >> (layer + 1)) << (layer + 1);
+			// Only a left child can be off the path.
+			if (index + (1 << layer) <= frontier)
+				frontierdigests[layer] = tree.serializedAgg(cursor.moveTo(layer, index));
+		}
+	}
+
+	/**
+	 * Make the proof for a set of leaves.
+	 * 
+	 * @param leaves
+	 *            The leaves to include along with their values.
+	 * @param aggleaves
+	 *            The leaves to include without their values, eg, splice
+	 *            points. May be null.
+	 * @param compact
+	 *            Use the compact positional encoding rather than nested
+	 *            HistNodes.
+	 */
+	public Serialization.PrunedTree makeProof(int[] leaves, int[] aggleaves,
+			boolean compact) throws ProofError {
+		return new Proof(leaves, aggleaves == null ? new int[0] : aggleaves).build(compact);
+	}
+
+	/** The state of building one proof. */
+	private class Proof {
+		final NodeCursor<A, V> cursor = tree.root.copy();
+		/** The sorted leaves whose paths are in the proof. */
+		final int[] paths;
+		/** The sorted leaves that carry their values. */
+		final int[] vals;
+		Serialization.PrunedTree.Builder out;
+		ByteString.Output digests;
+		/** The width of the digests written so far, or -1 if none. */
+		int width = -1;
+
+		Proof(int[] leaves, int[] aggleaves) throws ProofError {
+			vals = leaves.clone();
+			Arrays.sort(vals);
+			int[] all = Arrays.copyOf(vals, vals.length + aggleaves.length + 1);
+			System.arraycopy(aggleaves, 0, all, vals.length, aggleaves.length);
+			int count = vals.length + aggleaves.length;
+			if (frontier >= 0)
+				all[count++] = frontier;
+			Arrays.sort(all, 0, count);
+			// Drop duplicates.
+			int n = 0;
+			for (int i = 0; i < count; i++) {
+				checkLeaf(all[i]);
+				if (n == 0 || all[n - 1] != all[i])
+					all[n++] = all[i];
+			}
+			paths = Arrays.copyOf(all, n);
+			for (int leaf : vals)
+				if (!cursor.moveTo(0, leaf).hasVal())
+					throw new ProofError("Leaf source does not have value to copy");
+		}
+
+		void checkLeaf(int leaf) throws ProofError {
+			if (leaf < 0 || leaf > tree.time)
+				throw new IllegalArgumentException(String.format(
+						"Version %d beyond the bounds of the tree [0,%d]", leaf,
+						tree.time));
+			if (!cursor.moveTo(0, leaf).isAggValid())
+				throw new ProofError("Leaf not in the tree");
+		}
+
+		Serialization.PrunedTree build(boolean compact) {
+			out = Serialization.PrunedTree.newBuilder();
+			out.setVersion(tree.time);
+			int layer = tree.root.layer();
+			if (compact) {
+				digests = ByteString.newOutput();
+				writeCompact(layer, 0, 0, paths.length);
+				out.setDigests(digests.toByteString());
+			} else {
+				out.setRoot(nested(layer, 0, 0, paths.length));
+			}
+			return out.build();
+		}
+
+		boolean hasVal(int leaf) {
+			return Arrays.binarySearch(vals, leaf) >= 0;
+		}
+
+		/** The serialized agg of a node, which must be frozen. */
+		ByteString digest(int layer, int index) {
+			ByteString cached = frontierdigests[layer];
+			if (cached != null && index == (frontier >> (layer + 1)) << (layer + 1))
+				return cached;
+			ByteString out = tree.serializedAgg(cursor.moveTo(layer, index));
+			if (out == null)
+				throw new Error("Pruned tree stub is missing its agg");
+			return out;
+		}
+
+		/** Build the nested encoding of a subtree, whose paths are those in [lo,hi). */
+		Serialization.HistNode nested(int layer, int index, int lo, int hi) {
+			Serialization.HistNode.Builder b = Serialization.HistNode.newBuilder();
+			if (layer == 0 && hasVal(index))
+				return b.setVal(aggobj.serializeVal(cursor.moveTo(0, index).getVal())).build();
+			if (layer == 0 || lo == hi)
+				return b.setAgg(digest(layer, index)).build();
+			int mid = index + (1 << (layer - 1));
+			int split = TreeBase.splitLeaves(paths, lo, hi, mid);
+			b.setLeft(nested(layer - 1, index, lo, split));
+			if (split < hi || mid <= tree.time) {
+				b.setRight(nested(layer - 1, mid, split, hi));
+			} else {
+				// Past the end; a frozen Merkle tree still has a stub here.
+				A right = cursor.moveTo(layer, index).rightAgg();
+				if (right != null)
+					b.setRight(Serialization.HistNode.newBuilder().setAgg(aggobj.serializeAgg(right)));
+			}
+			return b.build();
+		}
+
+		/** Append the leaves and digests of a subtree, whose paths are those in [lo,hi), in pre-order. */
+		void writeCompact(int layer, int index, int lo, int hi) {
+			if (layer == 0 || lo == hi) {
+				writeDigest(digest(layer, index));
+				return;
+			}
+			int mid = index + (1 << (layer - 1));
+			if (layer == 1) {
+				// List the leaves the same way serializeTreeCompact does.
+				boolean hasright = mid <= tree.time;
+				boolean rightlisted = hasright && hasVal(mid);
+				if (hasVal(index) || !rightlisted)
+					out.addLeaves(index);
+				writeDigest(digest(0, index));
+				if (hasright) {
+					if (rightlisted)
+						out.addLeaves(mid);
+					writeDigest(digest(0, mid));
+				}
+				return;
+			}
+			int split = TreeBase.splitLeaves(paths, lo, hi, mid);
+			writeCompact(layer - 1, index, lo, split);
+			if (mid <= tree.time)
+				writeCompact(layer - 1, mid, split, hi);
+		}
+
+		void writeDigest(ByteString bytes) {
+			if (width >= 0 && bytes.size() != width)
+				throw new Error("Aggs of differing widths cannot be encoded compactly");
+			width = bytes.size();
+			try {
+				bytes.writeTo(digests);
+			} catch (java.io.IOException e) {
+				throw new Error(e);
+			}
+		}
+	}
+}
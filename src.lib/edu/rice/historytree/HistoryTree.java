@@ -20,7 +20,10 @@
 package edu.rice.historytree;
 
 
+import java.nio.ByteBuffer;
+
 import edu.rice.historytree.generated.Serialization;
+import edu.rice.historytree.storage.HashStore;
 
 
 /** Top level class for implementing a history tree. 
@@ -37,6 +40,17 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
 	    		   HistoryDataStoreInterface<A,V> datastore) {
 	    super(aggobj,datastore);
 	}
+	/**
+	 * Attach this tree to a datastore that already holds a tree of the given
+	 * version, eg, a MappedFileStore reopened from disk.
+	 */
+	public HistoryTree<A,V> reopen(int version) {
+		this.time = version;
+		if (version >= 0)
+			this.root = datastore.makeRoot(log2(version));
+		return this;
+	}
+
 	@Override
 	public A agg() {
     	return aggV(time);
@@ -45,28 +59,66 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
 	/** Get the aggregate at a particular historical version number */
     public A aggV(int version) {
     	assert (version <= time);
-    	NodeCursor<A,V>  child, leaf, node;
-
-    	child = leaf = this.leaf(version);
-    	node = leaf.getParent(root);
-    	A agg = leaf.getAgg();
+    	if (hasAggBuffers())
+    		return aggVInPlace(version);
+    	// Walk one cursor from the leaf up in place.
+    	NodeCursor<A,V> node = this.leaf(version);
+    	A agg = node.getAgg();
 		//System.out.println("leaf"+node);
 
-    	while (node!=null && version >= (1<<node.layer()-1)) {
+    	while (!node.equals(root)) {
+    		int childindex = node.index();
+    		node.moveToParent();
+    		if (version < (1<<node.layer()-1))
+    			break;
     		//System.out.println("aggv"+node);
-    		NodeCursor<A,V>  left = node.left();
-    		if (child.equals(left))
+    		// A left child has the same index as its parent.
+    		if (childindex == node.index())
     			agg = aggobj.aggChildren(agg,null);
     		else {
-    			A leftagg = left.getAgg(); assert leftagg != null;
+    			A leftagg = node.leftAgg(); assert leftagg != null;
     			agg = aggobj.aggChildren(leftagg,agg);
     		}
-    		child = node;
-    		node = node.getParent(root);
     	}
     	return agg;
     }
     
+    /**
+     * aggV() for a datastore that hands out views of its aggs. The old aggs
+     * are hashed where they are stored; only the new ones are allocated.
+     */
+    @SuppressWarnings("unchecked")
+    private A aggVInPlace(int version) {
+    	AggBufferStore store = (AggBufferStore) datastore;
+    	AggBufferAggregation hash = (AggBufferAggregation) aggobj;
+    	NodeCursor<A,V> node = this.leaf(version);
+    	ByteBuffer agg = store.getAggBuffer(node);
+    	byte[] out = null;
+
+    	while (!node.equals(root)) {
+    		int childindex = node.index();
+    		node.moveToParent();
+    		if (version < (1<<node.layer()-1))
+    			break;
+    		// A left child has the same index as its parent.
+    		if (childindex == node.index())
+    			out = hash.aggChildren(agg,null);
+    		else {
+    			ByteBuffer leftagg = store.getAggBuffer(node.moveToLeft());
+    			node.moveToParent();
+    			assert leftagg != null;
+    			out = hash.aggChildren(leftagg,agg);
+    		}
+    		agg = ByteBuffer.wrap(out);
+    	}
+    	if (out == null && agg != null) {
+    		// Nothing to hash; the leaf itself.
+    		out = new byte[agg.remaining()];
+    		agg.get(out);
+    	}
+    	return (A) out;
+    }
+
     //
     //  Operations for making pruned trees.
     //
@@ -79,6 +131,76 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     	return out;
         }
 
+    //
+    //  Consistency proofs between two versions.
+    //
+
+    /**
+     * Make a pruned tree at version newversion that proves it extends the
+     * tree at oldversion. It holds the paths to the last leaf of each
+     * version, without their values, and the aggs of the frozen subtrees
+     * next to those paths.
+     */
+    public HistoryTree<A,V> makeConsistencyTree(int oldversion, int newversion,
+    		HistoryDataStoreInterface<A,V> newdatastore) throws ProofError {
+    	if (oldversion < 0 || oldversion > newversion || newversion > time)
+    		throw new IllegalArgumentException(String.format(
+    				"Versions %d and %d out of order or beyond the tree version %d",
+    				oldversion, newversion, time));
+    	HistoryTree<A,V> out = new HistoryTree<A,V>(this.aggobj,newdatastore);
+    	out.updateTime(newversion);
+    	out.root = out.datastore.makeRoot(log2(newversion));
+    	copyConsistency(out.root.markValid(), root.copy(), oldversion, newversion);
+    	return out;
+    }
+
+    /** Helper for makeConsistencyTree. Copy the subtree under node, as of newversion. */
+    private void copyConsistency(NodeCursor<A,V> node, NodeCursor<A,V> orig, int oldversion, int newversion) throws ProofError {
+    	int last = node.index() + (1 << node.layer()) - 1;
+    	boolean onpath = (node.index() <= oldversion && oldversion <= last)
+    		|| (node.index() <= newversion && newversion <= last);
+    	if (node.isLeaf() || !onpath) {
+    		// A stub. It is frozen at newversion, so it has the same agg here.
+    		A agg = orig.moveTo(node.layer(), node.index()).getAgg();
+    		if (agg == null)
+    			throw new ProofError("Tree lacks the agg for a stub");
+    		node.setAgg(agg);
+    		return;
+    	}
+    	int mid = node.index() + (1 << (node.layer() - 1));
+    	copyConsistency(node.forceLeft(), orig, oldversion, newversion);
+    	if (mid <= newversion)
+    		copyConsistency(node.forceRight(), orig, oldversion, newversion);
+    	if (node.isFrozen(newversion))
+    		node.setAgg(aggobj.aggChildren(node.leftAgg(), node.rightAgg()));
+    }
+
+    /** Make a proof, in the compact encoding, that the tree at newversion extends the tree at oldversion. */
+    public Serialization.ConsistencyProof makeConsistencyProof(int oldversion, int newversion) throws ProofError {
+    	HistoryTree<A,V> pruned = makeConsistencyTree(oldversion, newversion, new HashStore<A,V>());
+    	Serialization.PrunedTree.Builder tree = Serialization.PrunedTree.newBuilder();
+    	pruned.serializeTreeCompact(tree);
+    	return Serialization.ConsistencyProof.newBuilder()
+    		.setOldversion(oldversion)
+    		.setTree(tree)
+    		.build();
+    }
+
+    /**
+     * Check a consistency proof against the roots of the two versions, eg,
+     * from signatures on them. Nothing else is needed from the tree.
+     * 
+     * @return true if the tree with root newroot extends the one with root oldroot.
+     */
+    public static <A,V> boolean checkConsistencyProof(AggregationInterface<A,V> aggobj,
+    		Serialization.ConsistencyProof proof, A oldroot, A newroot) {
+    	PrunedTreeRoot<A,V> walker = PrunedTreeRoot.forHistoryTree(aggobj);
+    	A oldagg = walker.rootAtVersion(proof.getTree(), proof.getOldversion());
+    	A newagg = walker.rootAtVersion(proof.getTree(), proof.getTree().getVersion());
+    	return oldagg != null && newagg != null
+    		&& aggEquals(oldagg, oldroot) && aggEquals(newagg, newroot);
+    }
+
     @Override
     void parseSubtree(NodeCursor<A,V> node, Serialization.HistNode in) {
     	if (parseNode(node,in))
@@ -98,4 +220,12 @@ public class HistoryTree<A,V> extends TreeBase<A,V> {
     		}
     	}
     }
+
+    @Override
+    void parseCompactInterior(NodeCursor<A,V> node, boolean hasright) {
+    	if (hasright && node.isFrozen(time)) {
+    		node.markValid();
+    		node.setAgg(aggobj.aggChildren(node.left().getAgg(),node.right().getAgg()));
+    	}
+    }
 }
@@ -19,9 +19,14 @@
 
 package edu.rice.historytree;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import edu.rice.historytree.generated.Serialization;
 import edu.rice.historytree.generated.Serialization.HistNode;
 import edu.rice.historytree.storage.AppendOnlyArrayStore;
+import edu.rice.historytree.storage.MappedFileStore;
 
 /**
  * Top level class for implementing a history tree.
@@ -45,6 +50,9 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 		if (datastore instanceof AppendOnlyArrayStore<?, ?>)
 			throw new Error(
 					"Merkle Tree incompatible with AppendOnlyArrayStore");
+		if (datastore instanceof MappedFileStore)
+			throw new Error(
+					"Merkle Tree incompatible with MappedFileStore");
 	}
 
 	@Override
@@ -95,6 +103,129 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 		}
 	}
 
+	/** Leaves are hashed in aligned subtrees of this many leaves per task. */
+	private static final int SUBTREE_LEAVES = 256;
+
+	/**
+	 * Build the frozen Merkle tree over a batch of values in one step. The
+	 * result is the same as appending each value and then calling freeze(),
+	 * but the hashing is done in aligned power-of-two subtrees that run in
+	 * parallel on the pool, and each node is hashed only once.
+	 * 
+	 * The hashes are computed into per-layer arrays first, then written into
+	 * the datastore on the calling thread, so the datastore need not be
+	 * thread-safe.
+	 * 
+	 * @param vals
+	 *            The values to place in the tree. The tree must be empty.
+	 * @param pool
+	 *            The pool to hash on, or null to hash on the calling thread.
+	 */
+	@SuppressWarnings("unchecked")
+	public void buildFrozen(List<V> vals, ForkJoinPool pool) {
+		if (isFrozen == true || time >= 0)
+			throw new Error("Attempt to bulk build a non-empty Merkle tree");
+		isFrozen = true;
+		int n = vals.size();
+		if (n == 0)
+			return;
+		
+		// layers[l][i] is the agg of node (l, i<<l). 
+		int height = log2(n - 1);
+		Object[][] layers = new Object[height + 1][];
+		for (int l = 0, count = n; l <= height; l++, count = (count + 1) / 2)
+			layers[l] = new Object[count];
+		
+		// Hash the bottom of the tree as independent subtrees, then the few nodes above them.
+		int sublayers = Math.min(height, log2(SUBTREE_LEAVES - 1));
+		int subtrees = (n + SUBTREE_LEAVES - 1) / SUBTREE_LEAVES;
+		if (pool == null || subtrees == 1) {
+			for (int s = 0; s < subtrees; s++)
+				hashSubtree(aggobj, vals, layers, sublayers, s);
+		} else {
+			pool.invoke(new SubtreeTask(vals, layers, sublayers, 0, subtrees));
+		}
+		for (int l = sublayers + 1; l <= height; l++)
+			hashLayer(aggobj, layers, l, 0, layers[l].length);
+		
+		// Now place everything into the datastore.
+		updateTime(n - 1);
+		root = datastore.makeRoot(height);
+		NodeCursor<A, V> node = root.copy();
+		for (int i = 0; i < n; i++) {
+			node.moveTo(0, i).markValid();
+			node.setVal(vals.get(i));
+			node.setAgg((A) layers[0][i]);
+		}
+		for (int l = 1; l <= height; l++) {
+			for (int i = 0; i < layers[l].length; i++) {
+				node.moveTo(l, i << l).markValid();
+				node.setAgg((A) layers[l][i]);
+				// Missing right children are stubbed out with the empty agg, as freeze() does.
+				if (2 * i + 1 >= layers[l - 1].length)
+					node.forceRightAgg(aggobj.emptyAgg());
+			}
+		}
+	}
+
+	/** Hash nodes [lo,hi) of layer l from their children in layer l-1. */
+	@SuppressWarnings("unchecked")
+	private static <A, V> void hashLayer(AggregationInterface<A, V> aggobj, Object[][] layers, int l, int lo, int hi) {
+		Object[] children = layers[l - 1];
+		for (int i = lo; i < hi; i++) {
+			A left = (A) children[2 * i];
+			A right = 2 * i + 1 < children.length ? (A) children[2 * i + 1] : aggobj.emptyAgg();
+			layers[l][i] = aggobj.aggChildren(left, right);
+		}
+	}
+
+	/**
+	 * Hash the leaves of the s'th subtree of SUBTREE_LEAVES leaves, and the
+	 * 'sublayers' layers above them.
+	 */
+	private static <A, V> void hashSubtree(AggregationInterface<A, V> aggobj, List<V> vals, Object[][] layers, int sublayers, int s) {
+		int first = s * SUBTREE_LEAVES;
+		int last = Math.min(first + SUBTREE_LEAVES, vals.size());
+		for (int i = first; i < last; i++)
+			layers[0][i] = aggobj.aggVal(vals.get(i));
+		for (int l = 1; l <= sublayers; l++) {
+			int start = first >> l, end = Math.min((last + (1 << l) - 1) >> l, layers[l].length);
+			hashLayer(aggobj, layers, l, start, end);
+		}
+	}
+
+	/**
+	 * Hash the subtrees [lo,hi), each holding SUBTREE_LEAVES leaves and
+	 * 'sublayers' layers above them, splitting the range in half until it is
+	 * a single subtree.
+	 */
+	@SuppressWarnings("serial")
+	private class SubtreeTask extends RecursiveAction {
+		final List<V> vals;
+		final Object[][] layers;
+		final int sublayers, lo, hi;
+		
+		SubtreeTask(List<V> vals, Object[][] layers, int sublayers, int lo, int hi) {
+			this.vals = vals;
+			this.layers = layers;
+			this.sublayers = sublayers;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new SubtreeTask(vals, layers, sublayers, lo, mid),
+						new SubtreeTask(vals, layers, sublayers, mid, hi));
+				return;
+			}
+			// Digests hold state, so each task hashes with its own aggregator.
+			hashSubtree(aggobj.clone(), vals, layers, sublayers, lo);
+		}
+	}
+
 	@Override
 	public A agg() {
 		if (!isFrozen)
@@ -121,4 +252,14 @@ public class MerkleTree<A, V> extends TreeBase<A, V> {
 		node.setAgg(aggobj.aggChildren(node.left().getAgg(), node.right()
 				.getAgg()));
 	}
+
+	@Override
+	void parseCompactInterior(NodeCursor<A, V> node, boolean hasright) {
+		// Right children past the end of the tree are stubs with the empty agg.
+		if (!hasright)
+			node.forceRight().setAgg(aggobj.emptyAgg());
+		node.markValid();
+		node.setAgg(aggobj.aggChildren(node.left().getAgg(), node.right()
+				.getAgg()));
+	}
 }
@@ -56,8 +56,11 @@ package edu.rice.historytree;
 
 public final class NodeCursor<A, V> {
 	private final HistoryDataStore<A, V> datastore;
-	private final int layer;
-	private final int index;
+	/** Position of the cursor. Only the moveTo* methods change it. */
+	private int layer;
+	private int index;
+	/** Cached result of computeIndex(), or -1 if not yet computed. Reset on every move. */
+	private int cachedindex = -1;
 
 	final public int layer() { return layer; }
 	final public int index() { return index; }
@@ -127,16 +130,27 @@ public final class NodeCursor<A, V> {
 
 	/** Compute index in a total order */
 	public int computeIndex() {
+		int out = cachedindex;
+		if (out < 0) {
+			out = computeIndex(layer, index);
+			cachedindex = out;
+		}
+		return out;
+	}
+
+	/**
+	 * Compute the index of a node in a post-order traversal of the tree.
+	 * 
+	 * With j = index + 2^layer - 1, the node is preceded by the sum over k of
+	 * floor(j/2^k) nodes, which is 2j - popcount(j), and then offset by its
+	 * layer.
+	 */
+	public static int computeIndex(int layer, int index) {
 		assert index >= 0;
 		assert layer >= 0;
-		int s = 0;
 		int j = index + (1 << layer) - 1;
-		while (j > 0) {
-			s = s + j;
-			j = j / 2;
-		}
-		// System.out.format("\n %d %d --> %d \n",index,layer,s+layer);
-		return s + layer;
+		// System.out.format("\n %d %d --> %d \n",index,layer,2*j-Integer.bitCount(j)+layer);
+		return 2 * j - Integer.bitCount(j) + layer;
 	}
 
 	/**
@@ -204,6 +218,103 @@ public final class NodeCursor<A, V> {
 			return null;
 	};
 
+	/*
+	 * In-place navigation. The history tree core walks a single cursor up and
+	 * down the tree with these instead of allocating a new cursor at every
+	 * step. They must only be used on cursors private to the caller, never on
+	 * a tree's root or on a cursor that has been handed out.
+	 */
+
+	/** Make a new cursor at the same position. */
+	NodeCursor<A, V> copy() {
+		return new NodeCursor<A, V>(datastore, layer, index);
+	}
+
+	/** Move this cursor to the position of another cursor on the same store. */
+	NodeCursor<A, V> moveTo(NodeCursor<A, V> other) {
+		assert (this.datastore == other.datastore);
+		this.layer = other.layer;
+		this.index = other.index;
+		this.cachedindex = other.cachedindex;
+		return this;
+	}
+
+	/** Move this cursor to the given position. */
+	NodeCursor<A, V> moveTo(int layer, int index) {
+		this.layer = layer;
+		this.index = index;
+		this.cachedindex = -1;
+		return this;
+	}
+
+	/** Move this cursor to its left child. */
+	NodeCursor<A, V> moveToLeft() {
+		assert layer > 0;
+		layer = layer - 1;
+		cachedindex = -1;
+		return this;
+	}
+
+	/** Move this cursor to its right child. */
+	NodeCursor<A, V> moveToRight() {
+		assert layer > 0;
+		layer = layer - 1;
+		index = index + getStep();
+		cachedindex = -1;
+		return this;
+	}
+
+	/**
+	 * Move this cursor to its parent. The caller is responsible for not
+	 * moving above the root.
+	 */
+	NodeCursor<A, V> moveToParent() {
+		index = index & ~(getStep() * 2 - 1);
+		layer = layer + 1;
+		cachedindex = -1;
+		return this;
+	}
+
+	/** Is the left child valid? Does not allocate. */
+	boolean isLeftValid() {
+		boolean out = moveToLeft().isAggValid();
+		moveToParent();
+		return out;
+	}
+
+	/** Is the right child valid? Does not allocate. */
+	boolean isRightValid() {
+		boolean out = moveToRight().isAggValid();
+		moveToParent();
+		return out;
+	}
+
+	/** Get the agg of the left child, or null if it is not valid. Does not allocate. */
+	A leftAgg() {
+		A out = moveToLeft().isAggValid() ? getAgg() : null;
+		moveToParent();
+		return out;
+	}
+
+	/** Get the agg of the right child, or null if it is not valid. Does not allocate. */
+	A rightAgg() {
+		A out = moveToRight().isAggValid() ? getAgg() : null;
+		moveToParent();
+		return out;
+	}
+
+	/** Mark the left child valid and set its agg. Does not allocate. */
+	void forceLeftAgg(A a) {
+		moveToLeft().markValid().setAgg(a);
+		moveToParent();
+	}
+
+	/** Mark the right child valid and set its agg. Does not allocate. */
+	void forceRightAgg(A a) {
+		moveToRight().markValid().setAgg(a);
+		moveToParent();
+	}
+
 	/** A node is a leaf, stub, or interior */
 	boolean isStub() {
 		assert !isLeaf();
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+
+package edu.rice.historytree;
+
+import com.google.protobuf.ByteString;
+
+import edu.rice.historytree.generated.Serialization;
+
+/**
+ * Recompute the root agg of a serialized pruned tree in one walk over the
+ * protocol buffer, checking one leaf on the way.
+ * 
+ * Unlike parseTree(), nothing is put into a datastore and no cursors are
+ * made; each agg is computed from its children as the walk returns. That is
+ * all a verifier needs to check one message. Both the nested and the compact
+ * encodings are handled.
+ * 
+ * A pruned history tree may also be walked as of an earlier version, giving
+ * the same root as aggV(), for checking consistency proofs.
+ * 
+ * Not thread safe. Use one per thread.
+ */
+public class PrunedTreeRoot<A, V> {
+	private final AggregationInterface<A, V> aggobj;
+	/** Merkle trees hash every interior node; history trees only those within the version. */
+	private final boolean merkle;
+
+	// State of the walk in progress.
+	/** The version of the pruned tree, which fixes its shape. */
+	private int time;
+	/** The version whose aggs are being computed. */
+	private int aggtime;
+	/** The layer of the root of the tree at aggtime. */
+	private int rootlayer;
+	/** The agg of the root of the tree at aggtime. */
+	private A subroot;
+	/** The leaf being checked, or -1 for none. */
+	private int leaf;
+	private V event;
+	private boolean matched;
+	/** Set if a stub is not frozen at aggtime, so its agg is of no use. */
+	private boolean invalid;
+	/** The digests, sorted leaves and agg width of a compact tree. */
+	private ByteString digests;
+	private int[] leaves;
+	private int width;
+	private int offset;
+
+	private PrunedTreeRoot(AggregationInterface<A, V> aggobj, boolean merkle) {
+		this.aggobj = aggobj;
+		this.merkle = merkle;
+	}
+
+	/** Make a walker for pruned history trees. */
+	public static <A, V> PrunedTreeRoot<A, V> forHistoryTree(AggregationInterface<A, V> aggobj) {
+		return new PrunedTreeRoot<A, V>(aggobj, false);
+	}
+
+	/** Make a walker for pruned Merkle trees. */
+	public static <A, V> PrunedTreeRoot<A, V> forMerkleTree(AggregationInterface<A, V> aggobj) {
+		return new PrunedTreeRoot<A, V>(aggobj, true);
+	}
+
+	/**
+	 * Compute the root agg of a pruned tree, if the given leaf is on it and
+	 * holds the aggregate of the event. Gives the same answer as parseTree()
+	 * then leafMatches() and agg().
+	 * 
+	 * @return The root agg, or null if the leaf is not in the tree or does
+	 *         not match.
+	 */
+	public A rootIfLeafMatches(Serialization.PrunedTree in, int leaf, V event) {
+		this.leaf = leaf;
+		this.event = event;
+		try {
+			A root = walkTree(in, in.getVersion());
+			return matched ? root : null;
+		} finally {
+			this.event = null;
+		}
+	}
+
+	/**
+	 * Compute the root agg of a pruned history tree as of an earlier version.
+	 * Gives the same answer as parseTree() then aggV().
+	 * 
+	 * @return The root agg, or null if the tree does not hold what is needed
+	 *         to compute it.
+	 */
+	public A rootAtVersion(Serialization.PrunedTree in, int version) {
+		if (merkle)
+			throw new Error("Merkle trees have no earlier versions");
+		if (version < 0 || version > in.getVersion())
+			return null;
+		this.leaf = -1;
+		return walkTree(in, version);
+	}
+
+	/** Walk the tree, computing the aggs as of aggtime. */
+	private A walkTree(Serialization.PrunedTree in, int aggtime) {
+		this.time = in.getVersion();
+		this.aggtime = aggtime;
+		this.rootlayer = TreeBase.log2(aggtime);
+		this.subroot = null;
+		this.matched = false;
+		this.invalid = false;
+		try {
+			if (in.hasRoot()) {
+				walk(in.getRoot(), TreeBase.log2(time), 0);
+			} else if (in.hasDigests()) {
+				this.leaves = TreeBase.compactLeaves(in);
+				this.digests = in.getDigests();
+				this.width = TreeBase.compactWidth(in, leaves);
+				this.offset = 0;
+				walkCompact(TreeBase.log2(time), 0, 0, leaves.length);
+			}
+			return invalid ? null : subroot;
+		} finally {
+			this.digests = null;
+			this.leaves = null;
+		}
+	}
+
+	/** Compute the agg of a node of the nested encoding. */
+	private A walk(Serialization.HistNode in, int layer, int index) {
+		if (in.hasVal())
+			return stub(aggobj.aggSerializedVal(in.getVal()), layer, index);
+		if (in.hasAgg())
+			return stub(aggobj.parseAgg(in.getAgg()), layer, index);
+
+		if (layer == 0 || !in.hasLeft())
+			throw new Error("Invalid Proof. Missing left child.");
+		int mid = index + (1 << (layer - 1));
+		A left = walk(in.getLeft(), layer - 1, index);
+		if (!merkle && mid > aggtime)
+			return noteRoot(aggobj.aggChildren(left, null), layer, index);
+		if (!in.hasRight())
+			throw new Error("Invalid Proof. Missing right child.");
+		return noteRoot(aggobj.aggChildren(left, walk(in.getRight(), layer - 1, mid)), layer, index);
+	}
+
+	/**
+	 * Compute the agg of a node of the compact encoding.
+	 * 
+	 * @param lo
+	 *            The leaves in [lo,hi) are under this node.
+	 */
+	private A walkCompact(int layer, int index, int lo, int hi) {
+		if (lo == hi || layer == 0) {
+			A agg = aggobj.parseAgg(digests, offset, width);
+			offset += width;
+			return stub(agg, layer, index);
+		}
+		int mid = index + (1 << (layer - 1));
+		int split = TreeBase.splitLeaves(leaves, lo, hi, mid);
+		A left = walkCompact(layer - 1, index, lo, split);
+		// The right child is walked whenever it is in the shape, to keep our place in the digests.
+		A right = null;
+		if (mid <= time)
+			right = walkCompact(layer - 1, mid, split, hi);
+		if (merkle)
+			// Right children past the end of a Merkle tree are stubs with the empty agg.
+			return noteRoot(aggobj.aggChildren(left, right != null ? right : aggobj.emptyAgg()), layer, index);
+		return noteRoot(aggobj.aggChildren(left, mid <= aggtime ? right : null), layer, index);
+	}
+
+	/**
+	 * A stub or leaf. If it is the leaf being checked, compare it to the
+	 * event. A history tree stub must be frozen for its agg to be the same at
+	 * every later version.
+	 */
+	private A stub(A agg, int layer, int index) {
+		if (layer == 0 && index == leaf)
+			matched = aggobj.aggValEquals(event, agg);
+		if (!merkle && index <= aggtime && index + (1 << layer) - 1 > aggtime)
+			invalid = true;
+		return noteRoot(agg, layer, index);
+	}
+
+	/** An agg of a node as of aggtime. Note it if the node is the root at aggtime. */
+	private A noteRoot(A agg, int layer, int index) {
+		if (index == 0 && layer == rootlayer)
+			subroot = agg;
+		return agg;
+	}
+}
@@ -19,6 +19,10 @@
 
 package edu.rice.historytree;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import edu.rice.historytree.generated.Serialization;
@@ -44,6 +48,10 @@ public abstract class TreeBase<A, V> {
 	protected HistoryDataStoreInterface<A, V> datastore;
 	/** The aggregation object plugged in. */
 	protected AggregationInterface<A, V> aggobj;
+	/** Scratch cursor walked in place by append(), so appends do not allocate cursors. */
+	private NodeCursor<A, V> appendcursor;
+	/** Whether parseNode keeps the values under the leaves. */
+	private boolean parsevals = true;
 
 	/** Make an empty history tree with a given aggobj and datastore. */
 	public TreeBase(AggregationInterface<A, V> aggobj,
@@ -178,6 +186,26 @@ public abstract class TreeBase<A, V> {
 		return builder.build().toByteArray();
 	}
 
+	/** Can aggs be hashed and serialized in place, through views from the datastore? */
+	boolean hasAggBuffers() {
+		return datastore instanceof AggBufferStore && aggobj instanceof AggBufferAggregation;
+	}
+
+	/**
+	 * Serialize the agg of a node, straight from the datastore if it hands
+	 * out views of its aggs.
+	 * 
+	 * @return The serialized agg, or null if the node has none.
+	 */
+	ByteString serializedAgg(NodeCursor<A, V> node) {
+		if (hasAggBuffers()) {
+			ByteBuffer view = ((AggBufferStore) datastore).getAggBuffer(node);
+			return view == null ? null : ((AggBufferAggregation) aggobj).serializeAgg(view);
+		}
+		A agg = node.getAgg();
+		return agg == null ? null : aggobj.serializeAgg(agg);
+	}
+
 	/** Helper function for recursively serializing a history tree. */
 	private void serializeNode(Serialization.HistNode.Builder out,
 			NodeCursor<A, V> node) {
@@ -210,6 +238,123 @@ public abstract class TreeBase<A, V> {
 		}
 	}
 
+	/**
+	 * Serialize a pruned tree to a protocol buffer in the compact positional
+	 * encoding. Rather than a nested HistNode per node, only the indices of
+	 * the leaves on the tree and one flat run of fixed-width aggs, for the
+	 * stubs and leaves in pre-order, are sent. The values under the leaves
+	 * are not sent; a verifier compares the agg of the leaf instead.
+	 */
+	public void serializeTreeCompact(Serialization.PrunedTree.Builder out) {
+		out.setVersion(time);
+		if (root == null)
+			return;
+		ByteString.Output digests = ByteString.newOutput();
+		int width = serializeCompact(out, digests, root, -1);
+		out.setDigests(digests.toByteString());
+		// Make sure the parser will see the same shape.
+		int[] leaves = new int[out.getLeavesCount()];
+		for (int i = 0; i < leaves.length; i++)
+			leaves[i] = out.getLeaves(i);
+		if (countCompactSlots(time, root.layer(), 0, leaves, 0, leaves.length) * width != digests.size())
+			throw new Error("Pruned tree cannot be encoded compactly");
+	}
+
+	/**
+	 * Helper function for serializing the compact encoding. Appends the
+	 * leaves and aggs of the subtree in pre-order.
+	 * 
+	 * @param width
+	 *            The width of the aggs so far, or -1 if none have been written.
+	 * @return The width of the aggs.
+	 */
+	private int serializeCompact(Serialization.PrunedTree.Builder out,
+			ByteString.Output digests, NodeCursor<A, V> node, int width) {
+		NodeCursor<A, V> left = node.isLeaf() ? null : node.left();
+		NodeCursor<A, V> right = node.isLeaf() ? null : node.right();
+		if (left == null && right == null)
+			// A stub, or a leaf whose parent is already on a path.
+			return writeDigest(digests, node.getAgg(), width);
+		if (left == null)
+			throw new Error("Pruned tree is missing a left child");
+		// Children past the end of the tree are implied by the version.
+		boolean hasright = right != null && right.index() <= time;
+		if (right == null && node.index() + (1 << (node.layer() - 1)) <= time)
+			throw new Error("Pruned tree is missing a right child");
+		if (node.layer() == 1) {
+			// The parent of leaves is on a path if either leaf is listed.
+			// Prefer the ones with values, but list one either way.
+			boolean leftlisted = left.hasVal() || !(hasright && right.hasVal());
+			if (leftlisted)
+				out.addLeaves(left.index());
+			width = writeDigest(digests, left.getAgg(), width);
+			if (hasright) {
+				if (right.hasVal())
+					out.addLeaves(right.index());
+				width = writeDigest(digests, right.getAgg(), width);
+			}
+			return width;
+		}
+		width = serializeCompact(out, digests, left, width);
+		if (hasright)
+			width = serializeCompact(out, digests, right, width);
+		return width;
+	}
+
+	/** Append one agg to the digests, checking that every agg has the same width. */
+	private int writeDigest(ByteString.Output digests, A agg, int width) {
+		if (agg == null)
+			throw new Error("Pruned tree stub is missing its agg");
+		ByteString bytes = aggobj.serializeAgg(agg);
+		if (width >= 0 && bytes.size() != width)
+			throw new Error("Aggs of differing widths cannot be encoded compactly");
+		try {
+			bytes.writeTo(digests);
+		} catch (java.io.IOException e) {
+			throw new Error(e);
+		}
+		return bytes.size();
+	}
+
+	/**
+	 * Count the stubs and leaves in the shape of a compact pruned tree of
+	 * the given version, rooted at the given node.
+	 * 
+	 * @param leaves
+	 *            The sorted leaves; those in [lo,hi) are under this node.
+	 */
+	static int countCompactSlots(int time, int layer, int index, int[] leaves, int lo, int hi) {
+		if (lo == hi || layer == 0)
+			return 1;
+		int mid = index + (1 << (layer - 1));
+		int split = splitLeaves(leaves, lo, hi, mid);
+		int count = countCompactSlots(time, layer - 1, index, leaves, lo, split);
+		if (mid <= time)
+			count += countCompactSlots(time, layer - 1, mid, leaves, split, hi);
+		return count;
+	}
+
+	/** @return the first position in [lo,hi) holding a leaf at or after mid, or hi. */
+	static int splitLeaves(int[] leaves, int lo, int hi, int mid) {
+		while (lo < hi && leaves[lo] < mid)
+			lo++;
+		return lo;
+	}
+
+	/**
+	 * Does the given leaf hold the aggregate of the event? Compares in place
+	 * where the aggregator can, so the tree must be confined to one thread.
+	 * 
+	 * @return false if the leaf is not in the tree or does not match.
+	 */
+	public boolean leafMatches(int version, V event) {
+		NodeCursor<A, V> leaf = leaf(version);
+		if (leaf == null)
+			return false;
+		A agg = leaf.getAgg();
+		return agg != null && aggobj.aggValEquals(event, agg);
+	}
+
 	/**
 	 * Make a cursor pointing to the given leaf, if possible.
 	 * 
@@ -220,21 +365,21 @@ public abstract class TreeBase<A, V> {
 		if (version > time)
 			throw new Error(String.format("Leaf %d in tree version %d",
 					version, time));
+		// Walk one fresh cursor down in place, rather than one per level.
+		NodeCursor<A, V> node = root.copy();
 		if (time == 0)
-			return root;
-		NodeCursor<A, V> node = root, child;
+			return node;
 		for (int layer = log2(time);; layer--) {
 			// System.out.println("leaf"+node);
 			int mask = 1 << (layer - 1);
 			if ((mask & version) == mask)
-				child = node.right();
+				node.moveToRight();
 			else
-				child = node.left();
-			if (child == null)
+				node.moveToLeft();
+			if (!node.isAggValid())
 				return null;
 			if (layer == 1)
-				return child;
-			node = child;
+				return node;
 		}
 	}
 
@@ -243,19 +388,28 @@ public abstract class TreeBase<A, V> {
 	 * possible
 	 */
 	protected NodeCursor<A, V> forceLeaf(int version) {
+		return forceLeaf(version, root.copy());
+	}
+
+	/**
+	 * Forcibly create the path to the given leaf, walking the given cursor
+	 * from the root down to it in place.
+	 * 
+	 * @return The cursor, now pointing at the leaf.
+	 */
+	private NodeCursor<A, V> forceLeaf(int version, NodeCursor<A, V> node) {
+		node.moveTo(root);
 		if (time == 0)
-			return root.markValid();
-		NodeCursor<A, V> node = root, child;
+			return node.markValid();
 		for (int layer = log2(time);; layer--) {
 			// System.out.println("forceleaf"+node);
 			int mask = 1 << (layer - 1);
 			if ((mask & version) == mask)
-				child = node.forceRight();
+				node.moveToRight().markValid();
 			else
-				child = node.forceLeft();
+				node.moveToLeft().markValid();
 			if (layer == 1)
-				return child;
-			node = child;
+				return node;
 		}
 	}
 
@@ -270,7 +424,9 @@ public abstract class TreeBase<A, V> {
 			time = time + 1;
 			datastore.updateTime(time);
 			reparent(time);
-			leaf = forceLeaf(time);
+			if (appendcursor == null)
+				appendcursor = root.copy();
+			leaf = forceLeaf(time, appendcursor);
 		}
 		leaf.setVal(val);
 		computefrozenaggs(leaf);
@@ -280,6 +436,9 @@ public abstract class TreeBase<A, V> {
 	 * Recurse from the leaf upwards, computing the agg for all frozen nodes.
 	 * 
 	 * Frozen node == The subtree is complete and nothing more can be added.
+	 * 
+	 * @param leaf
+	 *            The leaf. Walked upwards in place unless it is the root.
 	 */
 	private void computefrozenaggs(NodeCursor<A, V> leaf) {
 		// First, set the leaf agg from the stored event (if it exists
@@ -287,15 +446,16 @@ public abstract class TreeBase<A, V> {
 			leaf.markValid();
 			leaf.setAgg(aggobj.aggVal(leaf.getVal()));
 		}
-		NodeCursor<A, V> node = leaf.getParent(root);
+		NodeCursor<A, V> node = leaf;
 		// System.out.println("Adding leaf "+leaf+" ------------------------ "
 		// );
-		while (node != null && node.isFrozen(time)) {
+		while (!node.equals(root)) {
+			node.moveToParent();
+			if (!node.isFrozen(time))
+				break;
 			assert (node.getAgg() == null);
 			// System.out.println("Adding leaf "+leaf+" visit node" +node);
-			node.setAgg(aggobj.aggChildren(node.left().getAgg(), node.right()
-					.getAgg()));
-			node = node.getParent(root);
+			node.setAgg(aggobj.aggChildren(node.leftAgg(), node.rightAgg()));
 		}
 	}
 
@@ -332,7 +492,7 @@ public abstract class TreeBase<A, V> {
 
 		if (selfleaf.isAggValid() && selfleaf.getAgg() != null) {
 			// If the leaf is already in the tree...
-			assert selfleaf.getAgg().equals(origleaf.getAgg());
+			assert aggEquals(selfleaf.getAgg(), origleaf.getAgg());
 		} else {
 			selfleaf.copyAgg(origleaf);
 		}
@@ -362,13 +522,92 @@ public abstract class TreeBase<A, V> {
 	 * configured with the right aggobj and a datastore.
 	 */
 	public void parseTree(Serialization.PrunedTree in) {
+		parseTree(in, true);
+	}
+
+	/**
+	 * Parse from a protocol buffer, optionally without the values under the
+	 * leaves. Without them, each leaf only gets its agg, which is hashed
+	 * straight out of the protocol buffer; the value is never copied. That
+	 * is all that a verifier, which has the message, needs.
+	 */
+	public void parseTree(Serialization.PrunedTree in, boolean keepvals) {
+		this.parsevals = keepvals;
 		this.time = in.getVersion();
 		if (in.hasRoot()) {
 			root = datastore.makeRoot(log2(in.getVersion()));
 			parseSubtree(root, in.getRoot());
+		} else if (in.hasDigests()) {
+			parseCompact(in);
+		}
+	}
+
+	/** Parse a pruned tree in the compact positional encoding, in one pass over the digests. */
+	private void parseCompact(Serialization.PrunedTree in) {
+		int[] leaves = compactLeaves(in);
+		root = datastore.makeRoot(log2(time));
+		ByteString digests = in.getDigests();
+		parseCompactSubtree(root, leaves, 0, leaves.length, digests, compactWidth(in, leaves), 0);
+	}
+
+	/** Get the leaves of a compact pruned tree, checking that they are in order and range. */
+	static int[] compactLeaves(Serialization.PrunedTree in) {
+		int time = in.getVersion();
+		int[] leaves = new int[in.getLeavesCount()];
+		for (int i = 0; i < leaves.length; i++) {
+			leaves[i] = in.getLeaves(i);
+			if (leaves[i] < 0 || leaves[i] > time || (i > 0 && leaves[i] <= leaves[i - 1]))
+				throw new Error("Invalid Proof. Leaves out of order or range.");
+		}
+		return leaves;
+	}
+
+	/** Get the width of each agg in a compact pruned tree with the given leaves. */
+	static int compactWidth(Serialization.PrunedTree in, int[] leaves) {
+		int time = in.getVersion();
+		int slots = countCompactSlots(time, log2(time), 0, leaves, 0, leaves.length);
+		int size = in.getDigests().size();
+		if (size == 0 || size % slots != 0)
+			throw new Error("Invalid Proof. Digests do not match the tree.");
+		return size / slots;
+	}
+
+	/**
+	 * Parse the subtree under a node from the compact encoding.
+	 * 
+	 * @param leaves
+	 *            The sorted leaves; those in [lo,hi) are under this node.
+	 * @param offset
+	 *            Offset of the next agg in the digests.
+	 * @return The offset of the agg after this subtree.
+	 */
+	private int parseCompactSubtree(NodeCursor<A, V> node, int[] leaves, int lo, int hi,
+			ByteString digests, int width, int offset) {
+		if (lo == hi || node.layer() == 0) {
+			// A stub or a leaf. Children are already valid from force*(), but the root is not.
+			node.markValid();
+			node.setAgg(aggobj.parseAgg(digests, offset, width));
+			return offset + width;
 		}
+		int mid = node.index() + (1 << (node.layer() - 1));
+		int split = splitLeaves(leaves, lo, hi, mid);
+		offset = parseCompactSubtree(node.forceLeft(), leaves, lo, split, digests, width, offset);
+		boolean hasright = mid <= time;
+		if (hasright)
+			offset = parseCompactSubtree(node.forceRight(), leaves, split, hi, digests, width, offset);
+		parseCompactInterior(node, hasright);
+		return offset;
 	}
 
+	/**
+	 * Finish parsing an interior node of the compact encoding, once its
+	 * children have been parsed.
+	 * 
+	 * @param hasright
+	 *            Does the node have a right child within the version?
+	 */
+	abstract void parseCompactInterior(NodeCursor<A, V> node, boolean hasright);
+
 	/** Parse a tree from a serialized protocol buffer. */
 	public void parseTree(byte data[]) throws InvalidProtocolBufferException {
 		parseTree(PrunedTree.parseFrom(data));
@@ -385,6 +624,10 @@ public abstract class TreeBase<A, V> {
 	 *            The corresponding protobuf object.
 	 */
 	protected boolean parseNode(NodeCursor<A, V> node, Serialization.HistNode in) {
+		if (in.hasVal() && !parsevals) {
+			node.setAgg(aggobj.aggSerializedVal(in.getVal()));
+			return true;
+		}
 		if (in.hasVal()) {
 			V val = aggobj.parseVal(in.getVal());
 			node.setVal(val);
@@ -414,8 +657,10 @@ public abstract class TreeBase<A, V> {
 	 *            The original tree.
 	 * @param origleaf
 	 *            The leaf in the original tree we're copying siblings from.
+	 *            Walked upwards in place.
 	 * @param leaf
-	 *            The leaf in this tree we're copyingto.
+	 *            The leaf in this tree we're copyingto. Walked upwards in
+	 *            place.
 	 * @param force
 	 *            Do we copy siblings all the way to the root unconditionally?
 	 *            Used when the pruned tree violates the invariant of all but
@@ -428,9 +673,7 @@ public abstract class TreeBase<A, V> {
 		assert (orig.time == this.time); // Except for concurrent
 											// copies&updates, time shouldn't
 											// change.
-		NodeCursor<A, V> node, orignode;
-		orignode = origleaf.getParent(orig.root);
-		node = leaf.getParent(root);
+		NodeCursor<A, V> node = leaf, orignode = origleaf;
 
 		// Do we continue up the tree?
 		boolean continuing = true;
@@ -442,21 +685,19 @@ public abstract class TreeBase<A, V> {
 		// Iterate up the tree, copying over sibling agg's for stubs. If we hit
 		// a node with two siblings. we're done. Earlier inserts will have
 		// already inserted sibling hashes for ancestor nodes.
-		while (continuing && node != null) {
-			if (!force && node.left() != null && node.right() != null)
+		while (continuing && !node.equals(root)) {
+			node.moveToParent();
+			orignode.moveToParent();
+			if (!force && node.isLeftValid() && node.isRightValid())
 				continuing = false;
-			NodeCursor<A, V> origleft, origright;
-			origleft = orignode.left();
-			if (origleft != null && origleft.getAgg() != null)
-				node.forceLeft().copyAgg(origleft);
+			A origleft = orignode.leftAgg();
+			if (origleft != null)
+				node.forceLeftAgg(origleft);
 
 			// A right node may or may not exist.
-			origright = orignode.right();
-			if (origright != null && origright.getAgg() != null)
-				node.forceRight().copyAgg(origright);
-
-			orignode = orignode.getParent(orig.root);
-			node = node.getParent(root);
+			A origright = orignode.rightAgg();
+			if (origright != null)
+				node.forceRightAgg(origright);
 		}
 		// Handle the root-is-frozen case
 		if (root.isFrozen(time)) {
@@ -465,6 +706,16 @@ public abstract class TreeBase<A, V> {
 		}
 	}
 
+	/**
+	 * Compare two aggregates by value. Some stores hand back a fresh copy of
+	 * each aggregate, so byte[] aggregates must be compared by content.
+	 */
+	static boolean aggEquals(Object a, Object b) {
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		return a.equals(b);
+	}
+
 	/** Return ceil(log_2(x)) */
 	public static int log2(int x) {
 		int i = 0, pow = 1;
@@ -68,6 +68,21 @@ public class ConcatAgg implements AggregationInterface<String, String> {
 		return b.toStringUtf8();
 	}
 
+	@Override
+	public String parseAgg(ByteString b, int offset, int length) {
+		return parseAgg(b.substring(offset, offset + length));
+	}
+
+	@Override
+	public String aggSerializedVal(ByteString b) {
+		return aggVal(parseVal(b));
+	}
+
+	@Override
+	public boolean aggValEquals(String event, String agg) {
+		return aggVal(event).equals(agg);
+	}
+
 	@Override
 	public ByteString serializeAgg(String agg) {
 		return ByteString.copyFrom(agg.getBytes());
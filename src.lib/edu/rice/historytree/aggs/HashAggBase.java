@@ -19,11 +19,14 @@
 
 package edu.rice.historytree.aggs;
 
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 
 
 import com.google.protobuf.ByteString;
 
+import edu.rice.historytree.AggBufferAggregation;
 import edu.rice.historytree.AggregationInterface;
 
 /**
@@ -31,17 +34,41 @@ import edu.rice.historytree.AggregationInterface;
  * other. the data being input and output is byte[]. This base class makes it
  * convenient to implement them.
  * 
+ * Each instance reuses one MessageDigest for every hash it computes, so an
+ * instance must be confined to one thread. Use clone() to get an instance
+ * for another thread; it copies the digest without a provider lookup.
  * 
  * @author crosby
  * 
  */
-abstract public class HashAggBase implements AggregationInterface<byte[], byte[]> {
+abstract public class HashAggBase implements AggregationInterface<byte[], byte[]>, AggBufferAggregation, Cloneable {
+	/** The digest reused for every hash. Created on first use. */
+	private MessageDigest md;
+	/** Scratch space for aggValEquals. */
+	private byte[] scratch;
+
+	/**
+	 * @return A new instance of the message digest algorithm. Called at most
+	 *         once per aggregator.
+	 */
+	abstract protected MessageDigest newDigest();
 
 	/**
 	 *  @param tag A tag byte used to distinguish hashes used on leaves and non-leaves
-	 *  @return The message digest algorithm. 
+	 *  @return The reused message digest, reset and primed with the tag. 
 	 * */
-	abstract public MessageDigest getAlgo(byte tag);
+	public MessageDigest getAlgo(byte tag) {
+		if (md == null)
+			md = newDigest();
+		md.reset();
+		md.update(tag);
+		return md;
+	}
+
+	/** @return The length in bytes of an aggregate. */
+	public int getDigestLength() {
+		return getAlgo((byte)0).getDigestLength();
+	}
 
 	@Override
 	public byte[] emptyAgg() {
@@ -64,11 +91,32 @@ abstract public class HashAggBase implements AggregationInterface<byte[], byte[]
 		return b.toByteArray();
 	}
 
+	@Override
+	public byte[] parseAgg(ByteString b, int offset, int length) {
+		// The substring shares the buffer, so only the one digest is copied.
+		byte[] out = new byte[length];
+		b.substring(offset, offset + length).copyTo(out, 0);
+		return out;
+	}
+
+	@Override
+	public byte[] aggSerializedVal(ByteString b) {
+		// Hash straight out of the buffer; the event is never copied out.
+		MessageDigest md = getAlgo((byte)0);
+		md.update(b.asReadOnlyByteBuffer());
+		return md.digest();
+	}
+
 	@Override
 	public ByteString serializeAgg(byte[] agg) {
 		return ByteString.copyFrom(agg);
 	}
 
+	@Override
+	public ByteString serializeAgg(ByteBuffer agg) {
+		return ByteString.copyFrom(agg.duplicate());
+	}
+
 	@Override
 	public ByteString serializeVal(byte[] val) {
 		return ByteString.copyFrom(val);
@@ -93,14 +141,84 @@ abstract public class HashAggBase implements AggregationInterface<byte[], byte[]
 			return md.digest();
 		}
 	}
+	@Override
+	public byte[] aggChildren(ByteBuffer leftAnn, ByteBuffer rightAnn) {
+		MessageDigest md = getAlgo(rightAnn != null ? (byte)1 : (byte)2);
+		md.update(leftAnn.duplicate());
+		if (rightAnn != null)
+			md.update(rightAnn.duplicate());
+		return md.digest();
+	}
+
 	@Override
 	public byte[] aggVal(byte[] event) {
 		return getAlgo((byte)0).digest(event);
 	}
+
+	/**
+	 * Like aggChildren, but hash into a caller-supplied buffer.
+	 * 
+	 * @return The number of bytes written.
+	 */
+	public int aggChildren(byte[] leftAnn, byte[] rightAnn, byte[] out, int offset) {
+		MessageDigest md;
+		if (rightAnn != null) {
+			md = getAlgo((byte)1);
+			md.update(leftAnn);
+			md.update(rightAnn);
+		} else {
+			md = getAlgo((byte)2);
+			md.update(leftAnn);
+		}
+		return digestInto(md, out, offset);
+	}
+
+	/**
+	 * Like aggVal, but hash into a caller-supplied buffer.
+	 * 
+	 * @return The number of bytes written.
+	 */
+	public int aggVal(byte[] event, byte[] out, int offset) {
+		MessageDigest md = getAlgo((byte)0);
+		md.update(event);
+		return digestInto(md, out, offset);
+	}
+
+	/**
+	 * Does the aggregate of the event equal the given aggregate? Hashes into
+	 * scratch space and compares in place, so nothing is allocated.
+	 */
 	@Override
-	public AggregationInterface<byte[], byte[]> clone() {
-		// ConcatAgg is stateless, so just return this
-		return this;
+	public boolean aggValEquals(byte[] event, byte[] agg) {
+		if (scratch == null)
+			scratch = new byte[getDigestLength()];
+		if (agg == null || agg.length != scratch.length)
+			return false;
+		aggVal(event, scratch, 0);
+		return MessageDigest.isEqual(scratch, agg);
+	}
+
+	private static int digestInto(MessageDigest md, byte[] out, int offset) {
+		try {
+			return md.digest(out, offset, out.length - offset);
+		} catch (DigestException e) {
+			throw new IllegalArgumentException("Output buffer too small for digest", e);
+		}
+	}
+
+	@Override
+	public HashAggBase clone() {
+		// Each clone needs its own digest, as a digest holds mutable state.
+		try {
+			HashAggBase out = (HashAggBase) super.clone();
+			out.md = null;
+			out.scratch = null;
+			if (md != null)
+				out.md = (MessageDigest) md.clone();
+			return out;
+		} catch (CloneNotSupportedException e) {
+			throw new Error("Unable to clone aggregator", e);
+		}
 	}
 
 }
\ No newline at end of file
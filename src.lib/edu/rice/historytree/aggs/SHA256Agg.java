@@ -28,16 +28,27 @@ import edu.rice.historytree.AggregationInterface;
 
 @SuppressWarnings("rawtypes")
 public class SHA256Agg extends HashAggBase {
-	public MessageDigest getAlgo(byte tag) {
+	/** Looked up once. Never updated, so it can be cloned from any thread. */
+	private static final MessageDigest PROTOTYPE = lookupDigest();
+
+	private static MessageDigest lookupDigest() {
 		try {
-			MessageDigest md=MessageDigest.getInstance("SHA-256");
-			md.update(tag);
-			return md;
+			return MessageDigest.getInstance("SHA-256");
 		} catch (NoSuchAlgorithmException e) {
 			e.printStackTrace();
 		}
 		return null;
 	}
+
+	@Override
+	protected MessageDigest newDigest() {
+		try {
+			return (MessageDigest) PROTOTYPE.clone();
+		} catch (CloneNotSupportedException e) {
+			// Provider does not support cloning. Fall back to a lookup.
+			return lookupDigest();
+		}
+	}
 	
 	@Override
 	public String getName() {
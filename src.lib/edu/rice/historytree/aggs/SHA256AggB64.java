@@ -19,6 +19,7 @@
 
 package edu.rice.historytree.aggs;
 
+import java.nio.ByteBuffer;
 
 import com.google.protobuf.ByteString;
 import com.sun.org.apache.xml.internal.security.exceptions.Base64DecodingException;
@@ -39,11 +40,23 @@ public class SHA256AggB64 extends SHA256Agg {
 		}
 	}
 
+	@Override
+	public byte[] parseAgg(ByteString b, int offset, int length) {
+		return parseAgg(b.substring(offset, offset + length));
+	}
+
 	@Override
 	public ByteString serializeAgg(byte[] agg) {
 		return ByteString.copyFromUtf8(Base64.encode(agg));
 	}
 
+	@Override
+	public ByteString serializeAgg(ByteBuffer agg) {
+		byte[] out = new byte[agg.remaining()];
+		agg.duplicate().get(out);
+		return serializeAgg(out);
+	}
+
 	@Override
 	public String getName() {
 		return NAME;
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import edu.rice.historytree.AggBufferStore;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * An array store specialized for fixed-width digests, such as SHA256Agg.
+ *
+ * Rather than an ArrayList holding a separate byte[] per node, every aggregate
+ * is packed into one contiguous byte[] slab at offset
+ * (computeIndex() * width). Whether a node is valid, and whether a valid node
+ * has an aggregate, are recorded in bitsets. Like ArrayStore, some interior
+ * nodes may be invalid, so it works for both history trees and Merkle trees.
+ *
+ * getAgg() returns a fresh copy of the digest; callers may keep it.
+ * getAggBuffer() returns a view into the slab, which HistoryTree.aggV() and
+ * BatchProofBuilder use to hash and serialize digests in place. A view is
+ * only good until the next setAgg() or updateTime(), which may grow the slab.
+ */
+public class DigestArrayStore extends StoreBase implements
+		HistoryDataStoreInterface<byte[], byte[]>, AggBufferStore {
+	/** Width of a digest in bytes for SHA-256. */
+	public static final int SHA256_WIDTH = 32;
+
+	/** Width of each aggregate in bytes. */
+	private final int width;
+	/** The aggregates. Offset into the array is the node's index in a post order traversal times the width. */
+	private byte[] aggstore;
+	/** Record whether a given agg is valid. */
+	private final BitSet aggvalid;
+	/** Record whether a valid node has had an agg set. */
+	private final BitSet aggset;
+	/**
+	 * Aggregates that are not exactly 'width' bytes long, eg, the emptyAgg()
+	 * stubs placed into a frozen Merkle tree. Rare, so kept out of the slab.
+	 */
+	private final HashMap<Integer, byte[]> oddaggs;
+	/** Record the val for a node. Offset into the array is the leaf node's index. */
+	private byte[][] valstore;
+
+	/** Make a store for SHA-256 sized aggregates. */
+	public DigestArrayStore() {
+		this(SHA256_WIDTH);
+	}
+
+	/** Make a store for aggregates that are all 'width' bytes long. */
+	public DigestArrayStore(int width) {
+		super();
+		if (width <= 0)
+			throw new IllegalArgumentException("Digest width must be positive");
+		this.width = width;
+		this.aggstore = new byte[8 * width];
+		this.aggvalid = new BitSet();
+		this.aggset = new BitSet();
+		this.oddaggs = new HashMap<Integer, byte[]>();
+		this.valstore = new byte[8][];
+	}
+
+	@Override
+	public NodeCursor<byte[], byte[]> makeRoot(int layer) {
+		return new NodeCursor<byte[], byte[]>(this, layer, 0);
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], byte[]> node) {
+		int index = node.computeIndex();
+		assert (index >= 0);
+		if (!aggset.get(index))
+			return null;
+		byte[] odd = oddaggs.get(index);
+		if (odd != null)
+			return odd.clone();
+		int offset = index * width;
+		return Arrays.copyOfRange(aggstore, offset, offset + width);
+	}
+
+	@Override
+	public ByteBuffer getAggBuffer(NodeCursor<?, ?> node) {
+		int index = node.computeIndex();
+		if (!aggset.get(index))
+			return null;
+		byte[] odd = oddaggs.get(index);
+		if (odd != null)
+			return ByteBuffer.wrap(odd).asReadOnlyBuffer();
+		return ByteBuffer.wrap(aggstore, index * width, width).slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], byte[]> node, byte[] a) {
+		assert (a != null);
+		int index = node.computeIndex();
+		assert (aggvalid.get(index));
+		ensureAggCapacity(index);
+		if (a.length == width) {
+			System.arraycopy(a, 0, aggstore, index * width, width);
+			if (!oddaggs.isEmpty())
+				oddaggs.remove(index);
+		} else {
+			oddaggs.put(index, a.clone());
+		}
+		aggset.set(index);
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], byte[]> node) {
+		return aggvalid.get(node.computeIndex());
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], byte[]> node) {
+		aggvalid.set(node.computeIndex());
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<byte[], byte[]> node) {
+		int index = node.index();
+		if (index >= valstore.length)
+			return null;
+		return valstore[index];
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], byte[]> node) {
+		return getVal(node) != null;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], byte[]> node, byte[] v) {
+		// Also, vals cannot be primitive types. Need a 'null' to indicate invalid.
+		assert (v != null);
+		int index = node.index();
+		if (index >= valstore.length)
+			valstore = Arrays.copyOf(valstore,
+					Math.max(2 * valstore.length, index + 1));
+		valstore[index] = v;
+	}
+
+	@Override
+	public void updateTime(int time) {
+		assert (time >= this.time);
+		this.time = time;
+		// Same bound as ArrayStore; room for the right stubs of a frozen Merkle tree.
+		ensureAggCapacity(4 * time);
+	}
+
+	/** Grow the slab geometrically until it can hold the agg at the given index. */
+	private void ensureAggCapacity(int index) {
+		int needed = (index + 1) * width;
+		if (needed <= aggstore.length)
+			return;
+		int size = aggstore.length;
+		while (size < needed)
+			size = 2 * size;
+		aggstore = Arrays.copyOf(aggstore, size);
+	}
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright 2010 Rice University
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @author Scott A. Crosby <scrosby@cs.rice.edu>
+ *
+ */
+
+package edu.rice.historytree.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.rice.historytree.AggBufferStore;
+import edu.rice.historytree.HistoryDataStoreInterface;
+import edu.rice.historytree.NodeCursor;
+
+/**
+ * A persistent append-only store for history trees of fixed-width digests.
+ *
+ * Aggregates live in a memory mapped file (base + ".aggs") at offset
+ * (computeIndex() * width) past a small header, so old aggregates are read
+ * straight out of the page cache. Values are appended as length-prefixed
+ * records to a second file (base + ".vals").
+ *
+ * Like AppendOnlyArrayStore, every node up to the current time is valid, so
+ * this store does not work for Merkle trees. In an append-only history tree
+ * the aggregates are written in post-order, so the nodes that have an
+ * aggregate are exactly a prefix of the post-order; that lets us tell a set
+ * agg from an unset one without storing any extra flags on disk.
+ *
+ * Old aggregates can be read in place through getAggBuffer(), which
+ * HistoryTree.aggV() and BatchProofBuilder use to hash and serialize them
+ * without copying them out of the mapping.
+ *
+ * Appends are durable once force() returns. A store reopened after a crash
+ * is at the version of the last force(); anything appended after that is
+ * discarded. Use HistoryTree.reopen() to attach a tree to a reopened store.
+ */
+public class MappedFileStore extends StoreBase implements
+		HistoryDataStoreInterface<byte[], byte[]>, AggBufferStore, Closeable {
+	/** Suffix of the file holding the aggregates. */
+	public static final String AGG_SUFFIX = ".aggs";
+	/** Suffix of the file holding the values. */
+	public static final String VAL_SUFFIX = ".vals";
+
+	private static final long MAGIC = 0x4869737454726565L; // "HistTree"
+	private static final int FORMAT = 1;
+	/** Header layout: magic, format, width, time, tag. */
+	private static final int HEADER_SIZE = 64;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int FORMAT_OFFSET = 8;
+	private static final int WIDTH_OFFSET = 12;
+	private static final int TIME_OFFSET = 16;
+	private static final int TAG_OFFSET = 24;
+	/** Number of aggregates in each mapped segment of the agg file. */
+	private static final int NODES_PER_SEGMENT = 1 << 20;
+
+	/** Width of each aggregate in bytes. */
+	private final int width;
+	private final FileChannel aggchannel;
+	private final FileChannel valchannel;
+	/** The mapped header of the agg file. */
+	private final MappedByteBuffer header;
+	/** The mapped segments of the agg file, each holding NODES_PER_SEGMENT aggs. */
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+	/** Number of aggregates set; they are always a prefix of the post-order. */
+	private int filled;
+	/** Offset of the record in the value file for each leaf. */
+	private long[] valoffsets;
+	/** Number of values in the value file. */
+	private int valcount;
+	/** Offset of the end of the value file. */
+	private long valend;
+
+	/** Open or create a store for SHA-256 sized aggregates. */
+	public MappedFileStore(File base) throws IOException {
+		this(base, DigestArrayStore.SHA256_WIDTH);
+	}
+
+	/**
+	 * Open the store at the given base path, creating it if it does not
+	 * exist.
+	 *
+	 * @param base
+	 *            The path of the store, without the file suffixes.
+	 * @param width
+	 *            The width of each aggregate in bytes.
+	 */
+	public MappedFileStore(File base, int width) throws IOException {
+		super();
+		if (width <= 0)
+			throw new IllegalArgumentException("Digest width must be positive");
+		this.width = width;
+		File aggfile = new File(base.getPath() + AGG_SUFFIX);
+		File valfile = new File(base.getPath() + VAL_SUFFIX);
+		boolean exists = aggfile.length() >= HEADER_SIZE;
+
+		this.aggchannel = new RandomAccessFile(aggfile, "rw").getChannel();
+		this.valchannel = new RandomAccessFile(valfile, "rw").getChannel();
+		this.header = aggchannel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE);
+		this.valoffsets = new long[1024];
+
+		if (exists) {
+			if (header.getLong(MAGIC_OFFSET) != MAGIC
+					|| header.getInt(FORMAT_OFFSET) != FORMAT)
+				throw new IOException("Not a history tree store: " + aggfile);
+			if (header.getInt(WIDTH_OFFSET) != width)
+				throw new IOException(String.format(
+						"Store has digest width %d, expected %d",
+						header.getInt(WIDTH_OFFSET), width));
+			this.time = header.getInt(TIME_OFFSET);
+			scanValues();
+		} else {
+			header.putLong(MAGIC_OFFSET, MAGIC);
+			header.putInt(FORMAT_OFFSET, FORMAT);
+			header.putInt(WIDTH_OFFSET, width);
+			header.putInt(TIME_OFFSET, -1);
+			header.putLong(TAG_OFFSET, 0);
+			header.force();
+			valchannel.truncate(0);
+		}
+		this.filled = frozenCount(time);
+	}
+
+	/**
+	 * Rebuild the in-memory index of the value file, discarding any values
+	 * past the last forced version.
+	 */
+	private void scanValues() throws IOException {
+		ByteBuffer len = ByteBuffer.allocate(4);
+		long offset = 0;
+		for (int i = 0; i <= time; i++) {
+			len.clear();
+			readFully(len, offset);
+			growValOffsets(i);
+			valoffsets[i] = offset;
+			offset += 4 + len.getInt(0);
+		}
+		if (valchannel.size() < offset)
+			throw new IOException("Truncated value file at leaf " + time);
+		valchannel.truncate(offset);
+		valcount = time + 1;
+		valend = offset;
+	}
+
+	/**
+	 * Number of frozen nodes in a tree of the given version. Those are
+	 * exactly the ones that have an aggregate.
+	 */
+	private static int frozenCount(int time) {
+		return 2 * (time + 1) - Integer.bitCount(time + 1);
+	}
+
+	/** Get the version of the tree held in the store, or -1 if empty. */
+	public int getTime() {
+		return time;
+	}
+
+	/** Get the opaque tag stored in the header, eg, a tree_id. */
+	public long getTag() {
+		return header.getLong(TAG_OFFSET);
+	}
+
+	/** Set the opaque tag stored in the header. Durable after the next force(). */
+	public void setTag(long tag) {
+		header.putLong(TAG_OFFSET, tag);
+	}
+
+	@Override
+	public NodeCursor<byte[], byte[]> makeRoot(int layer) {
+		return new NodeCursor<byte[], byte[]>(this, layer, 0);
+	}
+
+	/** Get the mapped segment holding the agg at the given index, mapping it if needed. */
+	private MappedByteBuffer segment(int index) {
+		int seg = index / NODES_PER_SEGMENT;
+		while (segments.size() <= seg) {
+			long segbytes = (long) width * NODES_PER_SEGMENT;
+			long position = HEADER_SIZE + segments.size() * segbytes;
+			try {
+				segments.add(aggchannel.map(FileChannel.MapMode.READ_WRITE,
+						position, segbytes));
+			} catch (IOException e) {
+				throw new Error("Unable to map history tree store", e);
+			}
+		}
+		return segments.get(seg);
+	}
+
+	@Override
+	public byte[] getAgg(NodeCursor<byte[], byte[]> node) {
+		int index = node.computeIndex();
+		if (index >= filled)
+			return null;
+		// Position a duplicate, so that concurrent readers do not share a position.
+		ByteBuffer seg = segment(index).duplicate();
+		seg.position((index % NODES_PER_SEGMENT) * width);
+		byte[] out = new byte[width];
+		seg.get(out);
+		return out;
+	}
+
+	/**
+	 * Get a read-only view of the aggregate for a cursor without copying it
+	 * out of the mapped file.
+	 *
+	 * @return The view, or null if the aggregate has not been set.
+	 */
+	@Override
+	public ByteBuffer getAggBuffer(NodeCursor<?, ?> node) {
+		int index = node.computeIndex();
+		if (index >= filled)
+			return null;
+		ByteBuffer out = segment(index).duplicate();
+		int offset = (index % NODES_PER_SEGMENT) * width;
+		out.position(offset);
+		out.limit(offset + width);
+		return out.slice().asReadOnlyBuffer();
+	}
+
+	@Override
+	public void setAgg(NodeCursor<byte[], byte[]> node, byte[] a) {
+		assert (isAggValid(node));
+		if (a.length != width)
+			throw new IllegalArgumentException(String.format(
+					"Aggregate of length %d in a store of width %d", a.length,
+					width));
+		int index = node.computeIndex();
+		ByteBuffer seg = segment(index).duplicate();
+		seg.position((index % NODES_PER_SEGMENT) * width);
+		seg.put(a);
+		if (index >= filled)
+			filled = index + 1;
+	}
+
+	@Override
+	public boolean isAggValid(NodeCursor<byte[], byte[]> node) {
+		return node.index() <= time;
+	}
+
+	@Override
+	public void markValid(NodeCursor<byte[], byte[]> node) {
+		assert (node.index() <= time);
+	}
+
+	@Override
+	public byte[] getVal(NodeCursor<byte[], byte[]> node) {
+		int index = node.index();
+		if (index >= valcount)
+			return null;
+		try {
+			ByteBuffer len = ByteBuffer.allocate(4);
+			readFully(len, valoffsets[index]);
+			ByteBuffer out = ByteBuffer.allocate(len.getInt(0));
+			readFully(out, valoffsets[index] + 4);
+			return out.array();
+		} catch (IOException e) {
+			throw new Error("Unable to read history tree store", e);
+		}
+	}
+
+	@Override
+	public boolean hasVal(NodeCursor<byte[], byte[]> node) {
+		return node.index() < valcount;
+	}
+
+	@Override
+	public void setVal(NodeCursor<byte[], byte[]> node, byte[] v) {
+		assert (v != null);
+		int index = node.index();
+		if (index != valcount)
+			throw new IllegalStateException(String.format(
+					"Values must be appended in order. Got %d expected %d",
+					index, valcount));
+		ByteBuffer record = ByteBuffer.allocate(4 + v.length);
+		record.putInt(v.length).put(v).flip();
+		try {
+			while (record.hasRemaining())
+				valchannel.write(record, valend + record.position());
+		} catch (IOException e) {
+			throw new Error("Unable to write history tree store", e);
+		}
+		growValOffsets(index);
+		valoffsets[index] = valend;
+		valend += 4 + v.length;
+		valcount++;
+	}
+
+	/** Fill the buffer from the value file, starting at the given offset. */
+	private void readFully(ByteBuffer out, long offset) throws IOException {
+		while (out.hasRemaining()) {
+			if (valchannel.read(out, offset + out.position()) < 0)
+				throw new IOException("Truncated value file at offset " + offset);
+		}
+	}
+
+	private void growValOffsets(int index) {
+		if (index >= valoffsets.length)
+			valoffsets = Arrays.copyOf(valoffsets,
+					Math.max(2 * valoffsets.length, index + 1));
+	}
+
+	@Override
+	public void updateTime(int time) {
+		assert (time > this.time);
+		this.time = time;
+	}
+
+	/**
+	 * Flush everything appended so far to disk and record the current version
+	 * as the one to reopen at.
+	 */
+	public void force() throws IOException {
+		for (MappedByteBuffer seg : segments)
+			seg.force();
+		valchannel.force(false);
+		header.putInt(TIME_OFFSET, time);
+		header.force();
+	}
+
+	/** Force and close the store. */
+	@Override
+	public void close() throws IOException {
+		force();
+		aggchannel.close();
+		valchannel.close();
+	}
+}
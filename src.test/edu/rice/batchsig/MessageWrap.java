@@ -13,6 +13,7 @@ class MessageWrap implements IMessage, OMessage {
 	TreeSigBlob signature;
 	Boolean targetvalidity = null;
 	Object recipient;
+	Object recipientuser = null;
 	Object author;
 	
 	public MessageWrap(int i) {
@@ -26,6 +27,11 @@ class MessageWrap implements IMessage, OMessage {
 		return this;
 	}
 
+	MessageWrap setRecipientUser(Object o) {
+		recipientuser = o;
+		return this;
+	}
+
 	MessageWrap setAuthor(Object o) {
 		author = o;
 		return this;
@@ -53,7 +59,7 @@ class MessageWrap implements IMessage, OMessage {
 
 	@Override
 	public void signatureResult(TreeSigBlob sig) {
-		System.out.format("Storing signature of '%s' with sig: {{%s}}\n" , new String(data) ,sig.toString());
+		System.out.format("Storing signature of '%s' with sig: {{%s}}\n" , new String(data) ,String.valueOf(sig));
 		this.signature = sig;
 	}
 
@@ -68,8 +74,7 @@ class MessageWrap implements IMessage, OMessage {
 
 	@Override
 	public Object getRecipientUser() {
-		// TODO Auto-generated method stub
-		return null;
+		return recipientuser;
 	}
 
 	@Override
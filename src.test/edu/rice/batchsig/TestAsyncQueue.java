@@ -0,0 +1,78 @@
+package edu.rice.batchsig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestAsyncQueue extends TestCase {
+	static final int PRODUCERS = 8;
+	static final int PER_PRODUCER = 50000;
+
+	/** Several producers add while another thread drains; every message comes out exactly once, in order per producer. */
+	@Test
+	public void testConcurrentAddAndDrain() throws InterruptedException {
+		final AsyncQueue<Integer> queue = new AsyncQueue<Integer>();
+		Thread producers[] = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int base = p * PER_PRODUCER;
+			producers[p] = new Thread() {
+				public void run() {
+					for (int i = 0; i < PER_PRODUCER; i++)
+						queue.add(base + i);
+				}
+			};
+		}
+		for (Thread t : producers)
+			t.start();
+
+		BitSet seen = new BitSet(PRODUCERS * PER_PRODUCER);
+		int last[] = new int[PRODUCERS];
+		Arrays.fill(last, -1);
+		int count = 0;
+		boolean done = false;
+		while (!done) {
+			// Check the producers before draining, so the last drain gets everything.
+			done = true;
+			for (Thread t : producers)
+				if (t.isAlive())
+					done = false;
+			assertTrue(queue.peekSize() >= 0);
+			ArrayList<Integer> batch = queue.atomicGetQueue();
+			for (Integer m : batch) {
+				assertFalse("Duplicate " + m, seen.get(m));
+				seen.set(m);
+				int p = m / PER_PRODUCER;
+				assertTrue(m % PER_PRODUCER > last[p]);
+				last[p] = m % PER_PRODUCER;
+				count++;
+			}
+		}
+		for (Thread t : producers)
+			t.join();
+		assertEquals(PRODUCERS * PER_PRODUCER, count);
+		assertEquals(PRODUCERS * PER_PRODUCER, seen.cardinality());
+		assertEquals(0, queue.peekSize());
+		assertEquals(0, queue.atomicGetQueue().size());
+	}
+
+	/** A thread suspended on an empty queue is woken by an add. */
+	@Test
+	public void testSuspendWakes() throws InterruptedException {
+		final AsyncQueue<Integer> queue = new AsyncQueue<Integer>();
+		Thread waiter = new Thread() {
+			public void run() {
+				queue.suspendTillNonEmpty();
+			}
+		};
+		waiter.start();
+		Thread.sleep(20);
+		queue.add(1);
+		waiter.join(5000);
+		assertFalse(waiter.isAlive());
+		assertEquals(1, queue.peekSize());
+	}
+}
@@ -0,0 +1,67 @@
+package edu.rice.batchsig;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestBatchPolicy extends TestCase {
+	static final long MS = 1000000;
+
+	/** With no history, wait for minbatch messages, but never past the deadline. */
+	@Test
+	public void testCutDelayClamps() {
+		BatchPolicy policy = new BatchPolicy(10, 4, 100);
+		assertTrue(policy.cutDelay(0, 0) > 0);
+		// A full batch is cut right away.
+		assertEquals(0, policy.cutDelay(100, 0));
+		assertEquals(0, policy.cutDelay(1000, 0));
+		// Short of minbatch, wait out the rest of the deadline.
+		assertEquals(6 * MS, policy.cutDelay(1, 4 * MS));
+		assertEquals(0, policy.cutDelay(4, 0));
+		// Past the deadline, cut whatever is there.
+		assertEquals(0, policy.cutDelay(1, 10 * MS));
+		assertEquals(0, policy.cutDelay(1, 20 * MS));
+	}
+
+	/** The target batch grows to rate * cost, within [minbatch, maxbatch] and the deadline. */
+	@Test
+	public void testCutDelayAdapts() {
+		BatchPolicy policy = new BatchPolicy(50, 4, 150);
+		// Steady state: 100 messages every millisecond, each batch takes 2ms to process.
+		long start = System.nanoTime() + 1000 * MS;
+		for (int i = 0; i < 100; i++) {
+			policy.recordBatch(100, start, start + 2 * MS);
+			start += MS;
+		}
+		assertEquals(100000.0, policy.getArrivalRate(), 1.0);
+		assertEquals(2.0, policy.getBatchCost(), 0.001);
+
+		// The target is 200 messages, clamped to maxbatch of 150; wait about 1ms for the 100 missing.
+		long delay = policy.cutDelay(50, 0);
+		assertTrue(delay > 0.99 * MS && delay < 1.01 * MS);
+		assertEquals(0, policy.cutDelay(150, 0));
+		// The wait is cut short, to leave time to process the batch before the deadline.
+		long clamped = policy.cutDelay(50, 47 * MS + MS / 2);
+		assertTrue(clamped > 0.49 * MS && clamped < 0.51 * MS);
+		assertEquals(0, policy.cutDelay(50, 49 * MS));
+
+		// At a low rate, the target falls back to minbatch.
+		for (int i = 0; i < 100; i++) {
+			policy.recordBatch(1, start, start + 2 * MS);
+			start += 100 * MS;
+		}
+		assertEquals(0, policy.cutDelay(4, 0));
+		assertTrue(policy.cutDelay(3, 0) > 0);
+	}
+
+	/** An interrupted wait returns with the interrupt still set. */
+	@Test
+	public void testAwaitBatchKeepsInterrupt() {
+		BatchPolicy policy = new BatchPolicy(10000, 1000, 1000);
+		SimpleQueue queue = new SimpleQueue(new DigestPrimitive());
+		queue.add(new MessageWrap(1));
+		Thread.currentThread().interrupt();
+		policy.awaitBatch(queue);
+		assertTrue(Thread.interrupted());
+	}
+}
@@ -1,9 +1,13 @@
 package edu.rice.batchsig;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
 import org.junit.Test;
 
 import edu.rice.batchsig.lazy.Dag;
 import edu.rice.batchsig.lazy.Dag.DagNode;
+import edu.rice.batchsig.lazy.IntDag;
 import junit.framework.TestCase;
 
 public class TestDag extends TestCase {
@@ -31,4 +35,44 @@ public class TestDag extends TestCase {
 	}
 	
 	
+	@Test
+	public void testIntDag() {
+		IntDag dag = new IntDag();
+		// A chain of bundles, each with some messages under it.
+		for (int i = 0 ; i < 1000 ; i++) {
+			dag.addEdge(10*(i+1),10*i);
+			for (int j = 1 ; j < 10 ; j++)
+				dag.addEdge(10*i, 10*i+j);
+		}
+		dag.addEdge(20,10); // Duplicate edges are ignored.
+		assertEquals(10001,dag.size());
+		assertTrue(Arrays.equals(new int[] {30},dag.getParents(20)));
+		assertEquals(10,dag.getChildren(20).length);
+
+		int[] below = dag.getAllChildren(50);
+		assertEquals(60,below.length);
+		HashSet<Integer> seen = new HashSet<Integer>();
+		for (int i : below)
+			seen.add(i);
+		for (int i = 0 ; i < 60 ; i++)
+			assertTrue(seen.contains(i));
+
+		// Removing a node removes its edges, and other keys stay findable.
+		for (int i : below)
+			dag.remove(i);
+		assertEquals(10001-60,dag.size());
+		assertFalse(dag.contains(25));
+		assertTrue(dag.contains(60));
+		assertEquals(9,dag.getChildren(60).length);
+		for (int i = 60 ; i < 10000 ; i++)
+			assertTrue(dag.contains(i));
+
+		dag.removeEdge(70,60);
+		assertEquals(0,dag.getParents(60).length);
+		try {
+			dag.removeEdge(70,60);
+			fail();
+		} catch (Error e) {
+		}
+	}
 }
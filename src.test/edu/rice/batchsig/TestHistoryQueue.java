@@ -1,10 +1,19 @@
 package edu.rice.batchsig;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Test;
 
 import edu.rice.batchsig.HistoryQueue;
 import edu.rice.batchsig.ProcessQueue;
 import edu.rice.batchsig.VerifyQueue;
+import edu.rice.batchsig.bench.log.PartitionedVerifyLazilyQueue;
+import edu.rice.batchsig.lazy.VerifyHisttreeLazily;
+import edu.rice.batchsig.lazy.VerifyLazily;
+import edu.rice.historytree.generated.Serialization.SignatureType;
+import edu.rice.historytree.generated.Serialization.TreeSigBlob;
 
 import junit.framework.TestCase;
 
@@ -252,6 +261,530 @@ public class TestHistoryQueue extends TestCase {
 		
 		
 	}
+	/** Proofs built in parallel must verify, and splice exactly as serial ones do. */
+	public void testParallelProofs() {
+		DigestPrimitive prims = new DigestPrimitive();
+		ForkJoinPool pool = new ForkJoinPool(4);
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		signqueue.setWorkerPool(pool);
+
+		Object targets[] = new Object[7];
+		for (int i=0 ; i < targets.length ; i++)
+			targets[i] = new Object();
+		MessageWrap msgA[] = new MessageWrap[300], msgB[] = new MessageWrap[300];
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i] = new MessageWrap(1000+i).setRecipient(targets[i % targets.length]);
+			msgB[i] = new MessageWrap(2000+i).setRecipient(targets[i % targets.length]);
+		}
+		playBatch(signqueue,msgA);
+		playBatch(signqueue,msgB);
+		pool.shutdown();
+		assertEquals(2,prims.signcount);
+
+		for (int i=0 ; i < msgA.length ; i++) {
+			assertEquals(i,msgA[i].getSignatureBlob().getLeaf());
+			assertEquals(0,msgA[i].getSignatureBlob().getSpliceHintCount());
+			assertEquals(msgA.length+i,msgB[i].getSignatureBlob().getLeaf());
+			assertEquals(msgA.length-1,msgB[i].getSignatureBlob().getSpliceHint(0));
+		}
+
+		VerifyQueue verify = new VerifyQueue(prims);
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i].wantValid(); verify.add(msgA[i]);
+			msgB[i].wantValid(); verify.add(msgB[i]);
+		}
+		verify.process();
+		for (int i=0 ; i < msgA.length ; i++) {
+			assertNull(msgA[i].targetvalidity);
+			assertNull(msgB[i].targetvalidity);
+		}
+	}
+
+	/** Compact proofs from a history tree verify and splice. */
+	public void testCompactProofs() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		signqueue.setCompactProofs(true);
+
+		Object targets[] = new Object[3];
+		for (int i=0 ; i < targets.length ; i++)
+			targets[i] = new Object();
+		MessageWrap msgA[] = new MessageWrap[30], msgB[] = new MessageWrap[30];
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i] = new MessageWrap(1000+i).setRecipient(targets[i % targets.length]);
+			msgB[i] = new MessageWrap(2000+i).setRecipient(targets[i % targets.length]);
+		}
+		playBatch(signqueue,msgA);
+		playBatch(signqueue,msgB);
+
+		for (int i=0 ; i < msgB.length ; i++) {
+			assertEquals(msgA.length+i,msgB[i].getSignatureBlob().getLeaf());
+			assertEquals(msgA.length-1,msgB[i].getSignatureBlob().getSpliceHint(0));
+			assertTrue(msgB[i].getSignatureBlob().getTree().hasDigests());
+		}
+
+		msgB[4].data[1]=0;
+		VerifyQueue verify = new VerifyQueue(prims);
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i].wantValid(); verify.add(msgA[i]);
+			if (i == 4)
+				msgB[i].wantInValid();
+			else
+				msgB[i].wantValid();
+			verify.add(msgB[i]);
+		}
+		verify.process();
+		for (int i=0 ; i < msgA.length ; i++) {
+			assertNull(msgA[i].targetvalidity);
+			assertNull(msgB[i].targetvalidity);
+		}
+	}
+
+	/** Bundled proofs send one tree per recipient per batch, so take fewer bytes, and still verify and splice. */
+	public void testBundledProofs() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims), plainqueue=new HistoryQueue(prims);
+		signqueue.setBundleProofs(true);
+		signqueue.setCompactProofs(true);
+		plainqueue.setCompactProofs(true);
+
+		Object targets[] = new Object[3];
+		for (int i=0 ; i < targets.length ; i++)
+			targets[i] = new Object();
+		MessageWrap msgA[] = new MessageWrap[30], msgB[] = new MessageWrap[30], plain[] = new MessageWrap[30];
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i] = new MessageWrap(1000+i).setRecipient(targets[i % targets.length]);
+			msgB[i] = new MessageWrap(2000+i).setRecipient(targets[i % targets.length]);
+			plain[i] = new MessageWrap(2000+i).setRecipient(targets[i % targets.length]);
+		}
+		playBatch(signqueue,msgA);
+		playBatch(signqueue,msgB);
+		playBatch(plainqueue,plain);
+
+		int bundledbytes = 0, plainbytes = 0;
+		for (int i=0 ; i < msgB.length ; i++) {
+			TreeSigBlob blob = msgB[i].getSignatureBlob();
+			assertEquals(SignatureType.BUNDLED_HISTORY_TREE,blob.getSignatureType());
+			assertEquals(msgA.length+i,blob.getLeaf());
+			if (i < targets.length) {
+				// The first message to each recipient holds the tree with all of its leaves, and the splice.
+				for (int j=i ; j < msgB.length ; j+=targets.length)
+					assertTrue(blob.getTree().getLeavesList().contains(msgA.length+j));
+				assertEquals(msgA.length-1,blob.getSpliceHint(0));
+				assertTrue(blob.hasSignatureBytes());
+				assertFalse(blob.hasBundleLeaf());
+			} else {
+				assertFalse(blob.hasTree());
+				assertFalse(blob.hasSignatureBytes());
+				assertEquals(msgA.length+i%targets.length,blob.getBundleLeaf());
+			}
+			bundledbytes += blob.getSerializedSize();
+			plainbytes += plain[i].getSignatureBlob().getSerializedSize();
+		}
+		assertTrue(String.format("%d bytes bundled, %d bytes not",bundledbytes,plainbytes),
+				2*bundledbytes < plainbytes);
+
+		// A bad message in a bundle, whether or not it holds the tree, does not spoil the rest.
+		msgB[0].data[1]=0;
+		msgB[4].data[1]=0;
+		VerifyQueue verify = new VerifyQueue(prims);
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i].wantValid(); verify.add(msgA[i]);
+			if (i == 0 || i == 4)
+				msgB[i].wantInValid();
+			else
+				msgB[i].wantValid();
+			verify.add(msgB[i]);
+		}
+		verify.process();
+		for (int i=0 ; i < msgA.length ; i++) {
+			assertNull(msgA[i].targetvalidity);
+			assertNull(msgB[i].targetvalidity);
+		}
+
+		// Without the first message of its bundle, a message cannot be verified.
+		verify = new VerifyQueue(prims);
+		msgB[5].wantInValid(); verify.add(msgB[5]);
+		verify.process();
+		assertNull(msgB[5].targetvalidity);
+	}
+
+	/** A splice verified in one drain authenticates older messages in a later drain. */
+	public void testSpliceIndex() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		Object target = new Object();
+		MessageWrap msgA[] = new MessageWrap[10], msgB[] = new MessageWrap[10];
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i] = new MessageWrap(1000+i).setRecipient(target);
+			msgB[i] = new MessageWrap(2000+i).setRecipient(target);
+		}
+		playBatch(signqueue,msgA);
+		playBatch(signqueue,msgB);
+		assertEquals(msgA.length-1,msgB[0].getSignatureBlob().getSpliceHint(0));
+
+		VerifyQueue verify = new VerifyQueue(prims);
+		prims.reset();
+		for (MessageWrap m : msgB) {
+			m.wantValid(); verify.add(m);
+		}
+		verify.process();
+		assertEquals(1,prims.verifycount);
+
+		// The earlier batch arrives late, and needs no signature at all.
+		msgA[3].data[1]=0;
+		for (MessageWrap m : msgA) {
+			if (m == msgA[3])
+				m.wantInValid();
+			else
+				m.wantValid();
+			verify.add(m);
+		}
+		verify.process();
+		assertEquals(1,prims.verifycount);
+		for (int i=0 ; i < msgA.length ; i++) {
+			assertNull(msgA[i].targetvalidity);
+			assertNull(msgB[i].targetvalidity);
+		}
+	}
+
+	/** Splices authenticated before the shards are rebuilt are still used afterwards. */
+	public void testSpliceIndexAcrossPools() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		Object target = new Object();
+		MessageWrap msgA[] = new MessageWrap[10], msgB[] = new MessageWrap[10];
+		for (int i=0 ; i < msgA.length ; i++) {
+			msgA[i] = new MessageWrap(1000+i).setRecipient(target);
+			msgB[i] = new MessageWrap(2000+i).setRecipient(target);
+		}
+		playBatch(signqueue,msgA);
+		playBatch(signqueue,msgB);
+
+		VerifyQueue verify = new VerifyQueue(prims);
+		prims.reset();
+		for (MessageWrap m : msgB) {
+			m.wantValid(); verify.add(m);
+		}
+		verify.process();
+		assertEquals(1,prims.verifycount);
+
+		// Moving to a pool changes the number of shards.
+		ForkJoinPool pool = new ForkJoinPool(3);
+		verify.setWorkerPool(pool);
+		for (MessageWrap m : msgA) {
+			m.wantValid(); verify.add(m);
+		}
+		verify.process();
+		pool.shutdown();
+		assertEquals(1,prims.verifycount);
+		for (int i=0 ; i < msgA.length ; i++)
+			assertNull(msgA[i].targetvalidity);
+	}
+
+	/** Messages from many signers verify correctly when sharded across a pool. */
+	public void testParallelVerify() {
+		DigestPrimitive prims = new DigestPrimitive();
+		MessageWrap msgs[][] = new MessageWrap[6][40];
+		for (int a=0 ; a < msgs.length ; a++) {
+			HistoryQueue signqueue=new HistoryQueue(prims);
+			for (int i=0 ; i < msgs[a].length ; i++)
+				msgs[a][i] = new MessageWrap(1000*a+i).setAuthor(a);
+			// Two batches, so later messages splice onto earlier ones.
+			playBatch(signqueue,Arrays.copyOfRange(msgs[a],0,20));
+			playBatch(signqueue,Arrays.copyOfRange(msgs[a],20,40));
+			// Corrupt one message from each signer.
+			msgs[a][a].data[1]=0;
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		VerifyQueue verify = new VerifyQueue(prims);
+		verify.setWorkerPool(pool);
+		for (int i=0 ; i < msgs[0].length ; i++)
+			for (int a=0 ; a < msgs.length ; a++) {
+				if (i == a)
+					msgs[a][i].wantInValid();
+				else
+					msgs[a][i].wantValid();
+				verify.add(msgs[a][i]);
+			}
+		verify.process();
+		pool.shutdown();
+		for (int a=0 ; a < msgs.length ; a++)
+			for (int i=0 ; i < msgs[a].length ; i++)
+				assertNull(msgs[a][i].targetvalidity);
+	}
+
+	/** Batches signed in a pipeline come out the same as when signed one at a time. */
+	public void testPipelined() {
+		DigestPrimitive prims = new DigestPrimitive();
+		PipelinedQueue signqueue=new PipelinedQueue(new HistoryQueue(prims));
+
+		Object targets[] = new Object[3];
+		for (int i=0 ; i < targets.length ; i++)
+			targets[i] = new Object();
+		MessageWrap msgs[][] = new MessageWrap[5][20];
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i).setRecipient(targets[i % targets.length]);
+			playBatch(signqueue,msgs[b]);
+		}
+		signqueue.finish();
+		assertEquals(msgs.length,prims.signcount);
+
+		VerifyQueue verify = new VerifyQueue(prims);
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++) {
+				assertEquals(20*b+i,msgs[b][i].getSignatureBlob().getLeaf());
+				assertEquals(b == 0 ? 0 : 1,msgs[b][i].getSignatureBlob().getSpliceHintCount());
+				msgs[b][i].wantValid();
+				verify.add(msgs[b][i]);
+			}
+		}
+		verify.process();
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNull(msgs[b][i].targetvalidity);
+	}
+
+	/** A batch that fails to sign hands every one of its messages a null signature, rather than none at all. */
+	public void testPipelinedSignFailure() {
+		checkPipelinedSignFailure(new RuntimeException("Signer failure"));
+	}
+
+	/** An Error while signing also fails the batch, and is still thrown on the signing thread. */
+	public void testPipelinedSignError() {
+		checkPipelinedSignFailure(new AssertionError("Signer error"));
+	}
+
+	/** Sign three batches in a pipeline, where signing the second throws the given exception. */
+	private void checkPipelinedSignFailure(final Throwable failure) {
+		final DigestPrimitive prims = new DigestPrimitive();
+		SignaturePrimitives failing = new SignaturePrimitives() {
+			int calls = 0;
+			public void sign(byte[] data, TreeSigBlob.Builder out) {
+				// Fail the second batch.
+				if (calls++ == 1) {
+					if (failure instanceof Error)
+						throw (Error) failure;
+					throw (RuntimeException) failure;
+				}
+				prims.sign(data, out);
+			}
+			public boolean verify(byte[] data, TreeSigBlob sig) {
+				return prims.verify(data, sig);
+			}
+		};
+		PipelinedQueue signqueue=new PipelinedQueue(new HistoryQueue(failing));
+		final int results[] = new int[3];
+		MessageWrap msgs[][] = new MessageWrap[3][10];
+		for (int b=0 ; b < msgs.length ; b++) {
+			final int batch = b;
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i) {
+					@Override
+					public void signatureResult(TreeSigBlob sig) {
+						results[batch]++;
+						super.signatureResult(sig);
+					}
+				};
+			playBatch(signqueue,msgs[b]);
+		}
+		signqueue.finish();
+		for (int b=0 ; b < msgs.length ; b++) {
+			assertEquals(msgs[b].length,results[b]);
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertEquals(b != 1,msgs[b][i].getSignatureBlob() != null);
+		}
+	}
+
+	/** Lazily verified messages, even out of order, are validated through their splices by one signature. */
+	public void testLazyVerify() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		Object target = new Object();
+		MessageWrap msgs[][] = new MessageWrap[3][20];
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i).setRecipient(target);
+			playBatch(signqueue,msgs[b]);
+		}
+		msgs[1][3].data[1]=0;
+
+		VerifyHisttreeLazily verify = new VerifyHisttreeLazily(prims);
+		prims.reset();
+		for (int b : new int[] {2,0,1})
+			for (int i=0 ; i < msgs[b].length ; i++) {
+				if (b == 1 && i == 3)
+					msgs[b][i].wantInValid();
+				else
+					msgs[b][i].wantValid();
+				verify.add(msgs[b][i]);
+			}
+		assertNull(msgs[1][3].targetvalidity);
+		verify.forceAll();
+		assertEquals(1,prims.verifycount);
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNull(msgs[b][i].targetvalidity);
+	}
+
+	/** With a latency bound, lazily verified messages are forced together once they come due. */
+	public void testLazyLatencyBound() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		Object target = new Object();
+		MessageWrap msgs[][] = new MessageWrap[2][20];
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i).setRecipient(target);
+			playBatch(signqueue,msgs[b]);
+		}
+
+		VerifyHisttreeLazily verify = new VerifyHisttreeLazily(prims);
+		verify.setLatencyBound(50);
+		assertEquals(Long.MAX_VALUE,verify.nextDeadline());
+		prims.reset();
+		long start = System.currentTimeMillis();
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++) {
+				msgs[b][i].wantValid();
+				verify.add(msgs[b][i]);
+			}
+		// Nothing is due yet.
+		verify.forceExpired(start);
+		assertEquals(0,prims.verifycount);
+		assertTrue(verify.nextDeadline() > start);
+		assertTrue(verify.nextDeadline() <= System.currentTimeMillis() + 50);
+
+		// Everything comes due together, and is validated through the splices by one signature.
+		verify.forceExpired(System.currentTimeMillis() + 1000);
+		assertEquals(1,prims.verifycount);
+		assertEquals(Long.MAX_VALUE,verify.nextDeadline());
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNull(msgs[b][i].targetvalidity);
+	}
+
+	/** Forcing a user validates all of its messages, and forgets those rejected when they were added. */
+	public void testLazyForceUser() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		MessageWrap msgs[][] = new MessageWrap[2][10];
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i);
+			playBatch(signqueue,msgs[b]);
+		}
+		// Its proof no longer matches, so it is rejected as soon as it is added.
+		msgs[1][3].data[1]=0;
+
+		VerifyHisttreeLazily verify = new VerifyHisttreeLazily(prims);
+		prims.reset();
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++) {
+				if (msgs[b][i] == msgs[1][3])
+					msgs[b][i].wantInValid();
+				else
+					msgs[b][i].wantValid();
+				verify.add(msgs[b][i]);
+			}
+		assertNull(msgs[1][3].targetvalidity);
+		assertEquals(19,verify.peekSize());
+		// Messages validated through splices stop being tracked, so at most one signature per batch is checked.
+		verify.forceUser(null,System.currentTimeMillis());
+		assertTrue(prims.verifycount <= msgs.length);
+		assertEquals(0,verify.peekSize());
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNull(msgs[b][i].targetvalidity);
+	}
+
+	/** Wait up to a few seconds for a queue to hold the given number of messages. */
+	private static void awaitSize(ProcessQueue<?> queue, int size) throws InterruptedException {
+		for (int i = 0 ; i < 500 && queue.peekSize() != size ; i++)
+			Thread.sleep(10);
+		assertEquals(size,queue.peekSize());
+	}
+
+	/** Forcing a user whose messages are spread over several partitions validates all of them, and only them. */
+	public void testPartitionedForceUser() throws InterruptedException {
+		DigestPrimitive prims = new DigestPrimitive();
+		// Authors 0-7 send to user 1, so its messages land in several partitions; author 8 sends to user 2.
+		MessageWrap msgs[][] = new MessageWrap[9][20];
+		for (int a=0 ; a < msgs.length ; a++) {
+			HistoryQueue signqueue=new HistoryQueue(prims);
+			Object target = new Object();
+			for (int i=0 ; i < msgs[a].length ; i++)
+				msgs[a][i] = new MessageWrap(1000*a+i).setAuthor(a).setRecipient(target).setRecipientUser(a < 8 ? 1 : 2);
+			playBatch(signqueue,Arrays.copyOfRange(msgs[a],0,10));
+			playBatch(signqueue,Arrays.copyOfRange(msgs[a],10,20));
+		}
+
+		VerifyLazily verifiers[] = new VerifyLazily[4];
+		for (int i=0 ; i < verifiers.length ; i++)
+			verifiers[i] = new VerifyHisttreeLazily(prims);
+		PartitionedVerifyLazilyQueue queue = new PartitionedVerifyLazilyQueue(verifiers);
+		queue.start();
+		for (int i=0 ; i < msgs[0].length ; i++)
+			for (int a=0 ; a < msgs.length ; a++) {
+				msgs[a][i].wantValid();
+				queue.add(msgs[a][i]);
+			}
+		awaitSize(queue,msgs.length*msgs[0].length);
+
+		queue.forceUser(1);
+		awaitSize(queue,msgs[8].length);
+		for (int a=0 ; a < msgs.length ; a++)
+			for (int i=0 ; i < msgs[a].length ; i++)
+				assertEquals(a == 8,msgs[a][i].targetvalidity != null);
+
+		// The rest are forced on shutdown.
+		queue.shutdown();
+		queue.join();
+		assertEquals(0,queue.peekSize());
+		for (int a=0 ; a < msgs.length ; a++)
+			for (int i=0 ; i < msgs[a].length ; i++)
+				assertNull(msgs[a][i].targetvalidity);
+	}
+
+	public void testLazySpeculate() {
+		DigestPrimitive prims = new DigestPrimitive();
+		HistoryQueue signqueue=new HistoryQueue(prims);
+		MessageWrap msgs[][] = new MessageWrap[3][10];
+		for (int b=0 ; b < msgs.length ; b++) {
+			for (int i=0 ; i < msgs[b].length ; i++)
+				msgs[b][i] = new MessageWrap(1000*b+i);
+			playBatch(signqueue,msgs[b]);
+		}
+
+		VerifyHisttreeLazily verify = new VerifyHisttreeLazily(prims);
+		// Speculate in the calling thread, so the verifies happen in order.
+		verify.setSpeculator(new Executor() {
+			public void execute(Runnable r) {
+				r.run();
+			}
+		});
+		prims.reset();
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++) {
+				msgs[b][i].wantValid();
+				verify.add(msgs[b][i]);
+			}
+		// Each batch brought a newer root, verified once in the background.
+		assertEquals(msgs.length,prims.verifycount);
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNotNull(msgs[b][i].targetvalidity);
+
+		// Forcing finds the roots already verified.
+		verify.forceAll();
+		assertEquals(msgs.length,prims.verifycount);
+		for (int b=0 ; b < msgs.length ; b++)
+			for (int i=0 ; i < msgs[b].length ; i++)
+				assertNull(msgs[b][i].targetvalidity);
+	}
+
 	static void playBatch(ProcessQueue queue, MessageWrap msg[]) {
 		play(queue,msg);
 		queue.process();
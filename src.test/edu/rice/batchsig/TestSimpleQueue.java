@@ -50,12 +50,74 @@ public class TestSimpleQueue extends TestCase {
 		insertAndProcess(1000, new MerkleQueue(new DigestPrimitive()));
     }
 
+	/** Messages under one Merkle root share one signature verification. */
+	@Test
+	public void testMerkleSharesSignature() {
+		DigestPrimitive prims = new DigestPrimitive();
+		MerkleQueue signqueue = new MerkleQueue(prims);
+		MessageWrap msgs[] = new MessageWrap[10];
+		for (int i = 0 ; i < msgs.length ; i++) {
+			msgs[i] = new MessageWrap(1000+i);
+			signqueue.add(msgs[i]);
+		}
+		signqueue.process();
+
+		// Corrupt one message; the rest still verify.
+		msgs[3].data[1]=0;
+		VerifyQueue verifyqueue = new VerifyQueue(prims);
+		for (MessageWrap m : msgs) {
+			if (m == msgs[3])
+				m.wantInValid();
+			else
+				m.wantValid();
+			verifyqueue.add(m);
+		}
+		prims.reset();
+		verifyqueue.process();
+		assertEquals(1,prims.verifycount);
+		for (MessageWrap m : msgs)
+			assertNull(m.targetvalidity);
+	}
+
+	/** A root verified in one drain is not verified again in a later one. */
+	@Test
+	public void testRootCache() {
+		DigestPrimitive prims = new DigestPrimitive();
+		MerkleQueue signqueue = new MerkleQueue(prims);
+		MessageWrap msgs[] = new MessageWrap[4];
+		for (int i = 0 ; i < msgs.length ; i++) {
+			msgs[i] = new MessageWrap(1000+i);
+			signqueue.add(msgs[i]);
+		}
+		signqueue.process();
+
+		VerifyQueue verifyqueue = new VerifyQueue(prims);
+		prims.reset();
+		for (MessageWrap m : msgs) {
+			m.wantValid();
+			verifyqueue.add(m);
+			verifyqueue.process();
+			assertNull(m.targetvalidity);
+		}
+		assertEquals(1,prims.verifycount);
+		assertEquals(3,verifyqueue.getRootCache().getHits());
+		assertEquals(1,verifyqueue.getRootCache().getMisses());
+	}
+
 	@Test
     public void testInsertAndProcessHistory() {
 		insertAndProcess(1000, new HistoryQueue(new DigestPrimitive()));
     }
 	
 
+	@Test
+    public void testInsertAndProcessHistoryCompact() {
+		HistoryQueue queue = new HistoryQueue(new DigestPrimitive());
+		queue.setCompactProofs(true);
+		insertAndProcess(1000, queue);
+		insertAndProcess(2000, queue);
+    }
+
 	public void testInsertAndProcessSimpleTwice() {
 		ProcessQueue queue = new SimpleQueue(new DigestPrimitive());
 		insertAndProcess(1000, queue);
@@ -0,0 +1,117 @@
+package edu.rice.batchsig.lazy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+public class TestDeadlineWheel extends TestCase {
+	/** Ticks spanned by the bottom level and by the whole wheel, less the overflow. */
+	static final long BOTTOM = 64, TOP = 64L * 64 * 64 * 64;
+
+	/** Items come out once their tick comes, in order of deadline, whatever level they were put in. */
+	@Test
+	public void testAgainstModel() {
+		Random rand = new Random(42);
+		for (int round = 0; round < 20; round++) {
+			long resolution = 1 + rand.nextInt(10);
+			long now = rand.nextInt(1000000);
+			DeadlineWheel<Integer> wheel = new DeadlineWheel<Integer>(resolution, now);
+			HashMap<Integer, Long> model = new HashMap<Integer, Long>();
+			// The first tick not yet advanced past.
+			long current = now / resolution;
+			int next = 0;
+			while (now < 3 * TOP * resolution) {
+				// Deadlines within each level, beyond the top level, and already past.
+				for (int i = rand.nextInt(20); i > 0; i--) {
+					long span = new long[] {BOTTOM, BOTTOM * 64, BOTTOM * 64 * 64, TOP, 2 * TOP}[rand.nextInt(5)];
+					long deadline = now + (long) (rand.nextDouble() * span * resolution) - (rand.nextInt(10) == 0 ? 5 * resolution : 0);
+					wheel.schedule(next, deadline);
+					model.put(next++, deadline);
+				}
+				assertEquals(model.size(), wheel.size());
+				checkNextDeadline(wheel, model, now, resolution);
+
+				now += (long) (rand.nextDouble() * new long[] {BOTTOM, BOTTOM * 64, BOTTOM * 64 * 64, TOP}[rand.nextInt(4)] * resolution);
+				ArrayList<Integer> out = wheel.advance(now);
+				HashSet<Integer> expected = new HashSet<Integer>();
+				for (Map.Entry<Integer, Long> e : model.entrySet())
+					if (e.getValue() / resolution <= now / resolution)
+						expected.add(e.getKey());
+				assertEquals(expected, new HashSet<Integer>(out));
+				assertEquals(expected.size(), out.size());
+				// Those scheduled when already due come out first, then the rest in order.
+				long last = Long.MIN_VALUE;
+				for (Integer item : out) {
+					long tick = Math.max(model.remove(item), 0) / resolution;
+					if (tick < current) {
+						assertEquals(Long.MIN_VALUE, last);
+						continue;
+					}
+					assertTrue(tick >= last);
+					last = tick;
+				}
+				current = now / resolution + 1;
+			}
+			assertEquals(model.size(), wheel.size());
+		}
+	}
+
+	/** nextDeadline() is never after the earliest item, and advancing to it makes progress. */
+	private void checkNextDeadline(DeadlineWheel<Integer> wheel, HashMap<Integer, Long> model, long now, long resolution) {
+		long earliest = Long.MAX_VALUE;
+		for (long deadline : model.values())
+			earliest = Math.min(earliest, deadline);
+		long next = wheel.nextDeadline();
+		if (earliest == Long.MAX_VALUE) {
+			assertEquals(Long.MAX_VALUE, next);
+			return;
+		}
+		assertTrue(next <= Math.max(earliest, 0) / resolution * resolution);
+	}
+
+	/** Repeatedly advancing to nextDeadline() reaches an item far past the bottom level in a few steps, and not early. */
+	@Test
+	public void testNextDeadlineCascades() {
+		for (long delta : new long[] {5, BOTTOM + 3, BOTTOM * 64 + 7, TOP - 1, TOP + 11, 5 * TOP}) {
+			DeadlineWheel<String> wheel = new DeadlineWheel<String>(1, 1000);
+			wheel.schedule("item", 1000 + delta);
+			int steps = 0;
+			while (true) {
+				long next = wheel.nextDeadline();
+				assertTrue(next <= 1000 + delta);
+				ArrayList<String> out = wheel.advance(next);
+				steps++;
+				if (!out.isEmpty()) {
+					assertEquals(1000 + delta, next);
+					break;
+				}
+				assertTrue("Too many steps", steps < 4 * 64 + 10);
+			}
+			assertEquals(0, wheel.size());
+			assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+		}
+	}
+
+	/** An item scheduled in the past is due right away. */
+	@Test
+	public void testAlreadyDue() {
+		DeadlineWheel<String> wheel = new DeadlineWheel<String>(10, 10000);
+		assertEquals(Long.MAX_VALUE, wheel.nextDeadline());
+		wheel.schedule("late", 5000);
+		wheel.schedule("later", 10505);
+		assertEquals(0, wheel.nextDeadline());
+		ArrayList<String> out = wheel.advance(10000);
+		assertEquals(1, out.size());
+		assertEquals("late", out.get(0));
+		assertEquals(10500, wheel.nextDeadline());
+		// Items may come out up to one tick early, but no earlier.
+		assertTrue(wheel.advance(10499).isEmpty());
+		assertEquals("later", wheel.advance(10500).get(0));
+	}
+}
@@ -1,5 +1,7 @@
 package edu.rice.historytree;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -12,7 +14,9 @@ import edu.rice.historytree.aggs.*;
 import edu.rice.historytree.generated.Serialization;
 import edu.rice.historytree.storage.AppendOnlyArrayStore;
 import edu.rice.historytree.storage.ArrayStore;
+import edu.rice.historytree.storage.DigestArrayStore;
 import edu.rice.historytree.storage.HashStore;
+import edu.rice.historytree.storage.MappedFileStore;
 
 import junit.framework.TestCase;
 
@@ -79,6 +83,72 @@ public class TestHistory extends TestCase {
 	}
 
 	
+	@Test
+	public void testOnDigestArrayStore() throws ProofError {
+		AggregationInterface<byte[],byte[]> aggobj = new SHA256Agg();
+		HistoryTree<byte[],byte[]> reference=new HistoryTree<byte[],byte[]>(aggobj,new AppendOnlyArrayStore<byte[],byte[]>());
+		HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(aggobj,new DigestArrayStore());
+		for (int i = 0 ; i < 100 ; i++) {
+			reference.append(String.format("Foo%d",i).getBytes());
+			histtree.append(String.format("Foo%d",i).getBytes());
+			assertTrue(Arrays.equals(reference.agg(),histtree.agg()));
+		}
+		for (int i = 0 ; i <= histtree.version() ; i++)
+			assertTrue(Arrays.equals(reference.aggV(i),histtree.aggV(i)));
+
+		// Pruned trees built on this store must match the original.
+		HistoryTree<byte[],byte[]> clone=histtree.makePruned(new DigestArrayStore());
+		clone.copyV(histtree,37,true);
+		assertTrue(Arrays.equals(reference.agg(),clone.agg()));
+		assertTrue(Arrays.equals(reference.aggV(37),clone.aggV(37)));
+
+		// Proofs serialized straight from the slab must match too.
+		int leaves[] = {3, 37, 64, 99};
+		assertEquals(new BatchProofBuilder<byte[],byte[]>(reference).makeProof(leaves,new int[0],false),
+				new BatchProofBuilder<byte[],byte[]>(histtree).makeProof(leaves,new int[0],false));
+	}
+
+	@Test
+	public void testOnMappedFileStore() throws IOException, ProofError {
+		File base = File.createTempFile("histtree", "");
+		AggregationInterface<byte[],byte[]> aggobj = new SHA256Agg();
+		HistoryTree<byte[],byte[]> reference=new HistoryTree<byte[],byte[]>(aggobj,new AppendOnlyArrayStore<byte[],byte[]>());
+		MappedFileStore store = new MappedFileStore(base);
+		HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(aggobj,store);
+		for (int i = 0 ; i < 50 ; i++) {
+			reference.append(String.format("Foo%d",i).getBytes());
+			histtree.append(String.format("Foo%d",i).getBytes());
+		}
+		store.setTag(1234);
+		store.close();
+		
+		// Reopen and keep appending where we left off.
+		store = new MappedFileStore(base);
+		assertEquals(49,store.getTime());
+		assertEquals(1234,store.getTag());
+		histtree=new HistoryTree<byte[],byte[]>(aggobj,store).reopen(store.getTime());
+		assertTrue(Arrays.equals(reference.agg(),histtree.agg()));
+		for (int i = 50 ; i < 100 ; i++) {
+			reference.append(String.format("Foo%d",i).getBytes());
+			histtree.append(String.format("Foo%d",i).getBytes());
+			assertTrue(Arrays.equals(reference.agg(),histtree.agg()));
+		}
+		for (int i = 0 ; i <= histtree.version() ; i++)
+			assertTrue(Arrays.equals(reference.aggV(i),histtree.aggV(i)));
+		HistoryTree<byte[],byte[]> clone=histtree.makePruned(new HashStore<byte[],byte[]>());
+		clone.copyV(histtree,12,true);
+		assertTrue(Arrays.equals("Foo12".getBytes(),clone.leaf(12).getVal()));
+		assertTrue(Arrays.equals(reference.aggV(12),clone.aggV(12)));
+		// Proofs serialized in place from the mapping match those from the heap.
+		int leaves[] = {12, 40, 77};
+		assertEquals(new BatchProofBuilder<byte[],byte[]>(reference).makeProof(leaves,new int[0],false),
+				new BatchProofBuilder<byte[],byte[]>(histtree).makeProof(leaves,new int[0],false));
+		store.close();
+		new File(base.getPath()+MappedFileStore.AGG_SUFFIX).delete();
+		new File(base.getPath()+MappedFileStore.VAL_SUFFIX).delete();
+		base.delete();
+	}
+
 	HistoryTree<String, String> makeHistTree(int length) {
 		AggregationInterface<String,String> aggobj = new ConcatAgg();
 		HistoryDataStoreInterface<String,String> datastore = new AppendOnlyArrayStore<String,String>();
@@ -142,6 +212,124 @@ public class TestHistory extends TestCase {
 		tree2.parseTree(pb);
 		return tree2;
 	}	
+	/** The compact encoding parses back to the same tree, including spliced proofs, and is smaller. */
+	@Test
+	public void testCompactSerialization() throws ProofError {
+		for (int len = 1 ; len < 40 ; len++) {
+			HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				histtree.append(String.format("Message %d, which is longer than a digest",i).getBytes());
+			for (int j = 0 ; j < len ; j++) {
+				HistoryTree<byte[],byte[]> clone = histtree.makePruned(new HashStore<byte[],byte[]>());
+				clone.copyV(histtree, j, true);
+				clone.copyV(histtree, j/2, false);
+
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				HistoryTree<byte[],byte[]> parsed= new HistoryTree<byte[],byte[]>(new SHA256Agg(),new HashStore<byte[],byte[]>());
+				parsed.parseTree(compact.build());
+				assertTrue(Arrays.equals(histtree.agg(),parsed.agg()));
+				assertTrue(Arrays.equals(histtree.aggV(j/2),parsed.aggV(j/2)));
+				assertTrue(Arrays.equals(histtree.leaf(j).getAgg(),parsed.leaf(j).getAgg()));
+				assertTrue(compact.build().getSerializedSize() < clone.serializeTree().length);
+			}
+		}
+	}
+
+	/** Parsing without values still yields the right leaf aggs, as a verifier needs. */
+	@Test
+	public void testParseWithoutValues() throws ProofError {
+		HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+		for (int i = 0 ; i < 13 ; i++)
+			histtree.append(String.format("Foo%d",i).getBytes());
+		for (int j = 0 ; j < 13 ; j++) {
+			HistoryTree<byte[],byte[]> clone = histtree.makePruned(new HashStore<byte[],byte[]>());
+			clone.copyV(histtree, j, true);
+			Serialization.PrunedTree.Builder builder = Serialization.PrunedTree.newBuilder();
+			clone.serializeTree(builder);
+			HistoryTree<byte[],byte[]> parsed= new HistoryTree<byte[],byte[]>(new SHA256Agg(),new HashStore<byte[],byte[]>());
+			parsed.parseTree(builder.build(),false);
+			assertFalse(parsed.leaf(j).hasVal());
+			assertTrue(Arrays.equals(histtree.agg(),parsed.agg()));
+			assertTrue(parsed.leafMatches(j,String.format("Foo%d",j).getBytes()));
+			assertFalse(parsed.leafMatches(j,String.format("Bar%d",j).getBytes()));
+		}
+	}
+
+	/** Walking a proof gives the same root as parsing it, for both encodings. */
+	@Test
+	public void testPrunedTreeRoot() throws ProofError {
+		PrunedTreeRoot<byte[],byte[]> walker = PrunedTreeRoot.forHistoryTree(new SHA256Agg());
+		for (int len = 1 ; len < 20 ; len++) {
+			HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				histtree.append(String.format("Message %d, which is longer than a digest",i).getBytes());
+			for (int j = 0 ; j < len ; j++) {
+				HistoryTree<byte[],byte[]> clone = histtree.makePruned(new HashStore<byte[],byte[]>());
+				clone.copyV(histtree, j, true);
+				byte[] msg = String.format("Message %d, which is longer than a digest",j).getBytes();
+
+				Serialization.PrunedTree.Builder nested = Serialization.PrunedTree.newBuilder();
+				clone.serializeTree(nested);
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				for (Serialization.PrunedTree pb : Arrays.asList(nested.build(), compact.build())) {
+					assertTrue(Arrays.equals(histtree.agg(),walker.rootIfLeafMatches(pb, j, msg)));
+					assertNull(walker.rootIfLeafMatches(pb, j, "Bar".getBytes()));
+				}
+			}
+		}
+	}
+
+	/** A consistency proof recomputes the roots at both versions, and only those. */
+	@Test
+	public void testConsistencyProof() throws ProofError {
+		AggregationInterface<byte[],byte[]> aggobj = new SHA256Agg();
+		for (int len = 1 ; len < 20 ; len++) {
+			HistoryTree<byte[],byte[]> histtree=new HistoryTree<byte[],byte[]>(aggobj,new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				histtree.append(String.format("Message %d",i).getBytes());
+			for (int j = 0 ; j < len ; j++)
+				for (int k = j ; k < len ; k++) {
+					Serialization.ConsistencyProof proof = histtree.makeConsistencyProof(j, k);
+					assertEquals(k, proof.getTree().getVersion());
+					assertTrue(HistoryTree.checkConsistencyProof(aggobj, proof, histtree.aggV(j), histtree.aggV(k)));
+					if (j != k)
+						assertFalse(HistoryTree.checkConsistencyProof(aggobj, proof, histtree.aggV(k), histtree.aggV(j)));
+					if (j > 0)
+						assertFalse(HistoryTree.checkConsistencyProof(aggobj, proof, histtree.aggV(j-1), histtree.aggV(k)));
+					// At most two paths of stubs.
+					assertTrue(proof.getTree().getDigests().size() <= 32 * (2 * TreeBase.log2(k) + 2));
+				}
+		}
+	}
+
+	/** A batch proof builder gives the same proofs as serializing a pruned tree. */
+	@Test
+	public void testBatchProofBuilder() throws ProofError {
+		for (int len = 1 ; len < 20 ; len++) {
+			HistoryTree<byte[],byte[]> tree=new HistoryTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				tree.append(String.format("Message %d",i).getBytes());
+			BatchProofBuilder<byte[],byte[]> builder = new BatchProofBuilder<byte[],byte[]>(tree);
+			for (int j = 0 ; j < len ; j++) {
+				int leaves[] = {j, (j*7) % len};
+				int splice[] = {j/2};
+				HistoryTree<byte[],byte[]> clone = tree.makePruned(new HashStore<byte[],byte[]>());
+				for (int leaf : leaves)
+					clone.copyV(tree, leaf, true);
+				clone.copyV(tree, splice[0], false);
+
+				Serialization.PrunedTree.Builder nested = Serialization.PrunedTree.newBuilder();
+				clone.serializeTree(nested);
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				assertEquals(nested.build(),builder.makeProof(leaves, splice, false));
+				assertEquals(compact.build(),builder.makeProof(leaves, splice, true));
+			}
+		}
+	}
+
 	HistoryTree<byte[],byte[]> 
 	makeShaHistTree() {
 		List<String> x = Arrays.asList("Alan","Bob","Charlie","Dan","Elen","Frank","Gordon","Helen","Isis","Jon","Kevin");
@@ -1,7 +1,9 @@
 package edu.rice.historytree;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -11,6 +13,7 @@ import edu.rice.historytree.*;
 import edu.rice.historytree.aggs.*;
 import edu.rice.historytree.generated.Serialization;
 import edu.rice.historytree.storage.ArrayStore;
+import edu.rice.historytree.storage.DigestArrayStore;
 import edu.rice.historytree.storage.HashStore;
 
 import junit.framework.TestCase;
@@ -66,6 +69,131 @@ public class TestMerkle extends TestCase {
 	}
 	}
 	
+	@Test
+	public void testOnDigestArrayStore() {
+		for (int len = 1 ; len < 12 ; len++) {
+			AggregationInterface<byte[],byte[]> aggobj = new SHA256Agg();
+			MerkleTree<byte[],byte[]> reference=new MerkleTree<byte[],byte[]>(aggobj,new HashStore<byte[],byte[]>());
+			MerkleTree<byte[],byte[]> tree=new MerkleTree<byte[],byte[]>(aggobj,new DigestArrayStore());
+			for (int i = 0 ; i < len ; i++) {
+				reference.append(NAMES[i].getBytes());
+				tree.append(NAMES[i].getBytes());
+			}
+			reference.freeze();
+			tree.freeze();
+			assertTrue(Arrays.equals(reference.agg(),tree.agg()));
+		}
+	}
+
+	@Test
+	public void testBuildFrozen() throws ProofError {
+		for (int len = 1 ; len < 12 ; len++) {
+			MerkleTree<String,String> tree=new MerkleTree<String,String>(new ConcatAgg(),new ArrayStore<String,String>());
+			tree.buildFrozen(Arrays.asList(Arrays.copyOf(NAMES,len)),null);
+			assertEquals(results[len-1],tree.agg());
+			MerkleTree<String,String> clone=tree.makePruned(new HashStore<String,String>());
+			clone.copyV(tree,len-1,true);
+			assertEquals(results[len-1],clone.agg());
+		}
+		// Spans several subtrees, so the hashing is split across the pool.
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for (int len : new int[]{255,256,257,1000,1024,1025}) {
+			AggregationInterface<byte[],byte[]> aggobj = new SHA256Agg();
+			MerkleTree<byte[],byte[]> reference=new MerkleTree<byte[],byte[]>(aggobj,new ArrayStore<byte[],byte[]>());
+			MerkleTree<byte[],byte[]> tree=new MerkleTree<byte[],byte[]>(aggobj,new ArrayStore<byte[],byte[]>());
+			List<byte[]> vals = new ArrayList<byte[]>();
+			for (int i = 0 ; i < len ; i++) {
+				vals.add(("Msg"+i).getBytes());
+				reference.append(vals.get(i));
+			}
+			reference.freeze();
+			tree.buildFrozen(vals,pool);
+			assertTrue(Arrays.equals(reference.agg(),tree.agg()));
+			for (int i : new int[]{0,len/2,len-1}) {
+				MerkleTree<byte[],byte[]> clone=tree.makePruned(new HashStore<byte[],byte[]>());
+				clone.copyV(tree,i,true);
+				assertTrue(Arrays.equals(reference.agg(),clone.agg()));
+			}
+		}
+		pool.shutdown();
+	}
+
+	/** The compact encoding parses back to the same tree, and is smaller. */
+	@Test
+	public void testCompactSerialization() throws ProofError {
+		for (int len = 1 ; len < 40 ; len++) {
+			MerkleTree<byte[],byte[]> tree=new MerkleTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				tree.append(String.format("Message %d, which is longer than a digest",i).getBytes());
+			tree.freeze();
+			for (int j = 0 ; j < len ; j++) {
+				MerkleTree<byte[],byte[]> clone = tree.makePruned(new HashStore<byte[],byte[]>());
+				clone.copyV(tree, j, true);
+
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				MerkleTree<byte[],byte[]> parsed= new MerkleTree<byte[],byte[]>(new SHA256Agg(),new HashStore<byte[],byte[]>());
+				parsed.parseTree(compact.build());
+				assertTrue(Arrays.equals(tree.agg(),parsed.agg()));
+				assertTrue(Arrays.equals(tree.leaf(j).getAgg(),parsed.leaf(j).getAgg()));
+				assertTrue(compact.build().getSerializedSize() < clone.serializeTree().length);
+			}
+		}
+	}
+
+	/** Walking a proof gives the same root as parsing it, for both encodings. */
+	@Test
+	public void testPrunedTreeRoot() throws ProofError {
+		PrunedTreeRoot<byte[],byte[]> walker = PrunedTreeRoot.forMerkleTree(new SHA256Agg());
+		for (int len = 1 ; len < 20 ; len++) {
+			MerkleTree<byte[],byte[]> tree=new MerkleTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				tree.append(String.format("Message %d, which is longer than a digest",i).getBytes());
+			tree.freeze();
+			for (int j = 0 ; j < len ; j++) {
+				MerkleTree<byte[],byte[]> clone = tree.makePruned(new HashStore<byte[],byte[]>());
+				clone.copyV(tree, j, true);
+				byte[] msg = String.format("Message %d, which is longer than a digest",j).getBytes();
+
+				Serialization.PrunedTree.Builder nested = Serialization.PrunedTree.newBuilder();
+				clone.serializeTree(nested);
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				for (Serialization.PrunedTree pb : Arrays.asList(nested.build(), compact.build())) {
+					assertTrue(Arrays.equals(tree.agg(),walker.rootIfLeafMatches(pb, j, msg)));
+					assertNull(walker.rootIfLeafMatches(pb, j, "Bar".getBytes()));
+				}
+			}
+		}
+	}
+
+	/** A batch proof builder gives the same proofs as serializing a pruned tree. */
+	@Test
+	public void testBatchProofBuilder() throws ProofError {
+		for (int len = 1 ; len < 20 ; len++) {
+			MerkleTree<byte[],byte[]> tree=new MerkleTree<byte[],byte[]>(new SHA256Agg(),new ArrayStore<byte[],byte[]>());
+			for (int i = 0 ; i < len ; i++)
+				tree.append(String.format("Message %d",i).getBytes());
+			tree.freeze();
+			BatchProofBuilder<byte[],byte[]> builder = new BatchProofBuilder<byte[],byte[]>(tree);
+			for (int j = 0 ; j < len ; j++) {
+				int leaves[] = {j, (j*7) % len};
+				int splice[] = {j/2};
+				MerkleTree<byte[],byte[]> clone = tree.makePruned(new HashStore<byte[],byte[]>());
+				for (int leaf : leaves)
+					clone.copyV(tree, leaf, true);
+				clone.copyV(tree, splice[0], false);
+
+				Serialization.PrunedTree.Builder nested = Serialization.PrunedTree.newBuilder();
+				clone.serializeTree(nested);
+				Serialization.PrunedTree.Builder compact = Serialization.PrunedTree.newBuilder();
+				clone.serializeTreeCompact(compact);
+				assertEquals(nested.build(),builder.makeProof(leaves, splice, false));
+				assertEquals(compact.build(),builder.makeProof(leaves, splice, true));
+			}
+		}
+	}
+
 	MerkleTree<String, String> makeHistTree(int length) {
 		AggregationInterface<String,String> aggobj = new ConcatAgg();
 		HistoryDataStoreInterface<String,String> datastore = new ArrayStore<String,String>();
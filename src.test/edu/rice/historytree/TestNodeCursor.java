@@ -0,0 +1,103 @@
+package edu.rice.historytree;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.rice.historytree.storage.ArrayStore;
+
+import junit.framework.TestCase;
+
+public class TestNodeCursor extends TestCase {
+	static final int LAYERS = 12;
+
+	/** Number the nodes under (layer,index) in post-order, starting at next, and check each one. */
+	private int checkPostOrder(int layer, int index, int next) {
+		if (layer > 0) {
+			next = checkPostOrder(layer - 1, index, next);
+			next = checkPostOrder(layer - 1, index + (1 << (layer - 1)), next);
+		}
+		assertEquals(String.format("<%d,%d>", layer, index), next, NodeCursor.computeIndex(layer, index));
+		return next + 1;
+	}
+
+	/** The closed form gives the post-order index of every node of a tree of 2^12 leaves. */
+	@Test
+	public void testComputeIndex() {
+		assertEquals((2 << LAYERS) - 1, checkPostOrder(LAYERS, 0, 0));
+		// And so does the cached index of a cursor.
+		ArrayStore<String, String> store = new ArrayStore<String, String>();
+		for (int layer = 0; layer <= LAYERS; layer++)
+			for (int index = 0; index < 1 << LAYERS; index += 1 << layer)
+				assertEquals(NodeCursor.computeIndex(layer, index), new NodeCursor<String, String>(store, layer, index).computeIndex());
+	}
+
+	/** Check that a cursor that was moved matches a fresh one at the same position. */
+	private void checkSame(NodeCursor<String, String> moved, ArrayStore<String, String> store) {
+		NodeCursor<String, String> fresh = new NodeCursor<String, String>(store, moved.layer(), moved.index());
+		assertEquals(fresh, moved);
+		assertEquals(fresh.computeIndex(), moved.computeIndex());
+	}
+
+	/** Moving a cursor in place goes where making a new one would. */
+	@Test
+	public void testMoves() {
+		ArrayStore<String, String> store = new ArrayStore<String, String>();
+		NodeCursor<String, String> root = new NodeCursor<String, String>(store, LAYERS, 0);
+		NodeCursor<String, String> cursor = root.copy();
+		Random rand = new Random(7);
+		for (int step = 0; step < 100000; step++) {
+			// Compute the index, so a stale cached index would show up after the move.
+			cursor.computeIndex();
+			NodeCursor<String, String> expected;
+			int move = rand.nextInt(4);
+			if (cursor.layer() == LAYERS)
+				move = rand.nextInt(2);
+			else if (cursor.layer() == 0)
+				move = 2 + rand.nextInt(2);
+			if (move == 0) {
+				expected = cursor.getLeft();
+				cursor.moveToLeft();
+			} else if (move == 1) {
+				expected = cursor.getRight();
+				cursor.moveToRight();
+			} else if (move == 2) {
+				expected = cursor.getParent(root);
+				cursor.moveToParent();
+			} else {
+				// Jump to a random node.
+				int layer = rand.nextInt(LAYERS + 1);
+				int index = rand.nextInt(1 << (LAYERS - layer)) << layer;
+				expected = new NodeCursor<String, String>(store, layer, index);
+				cursor.moveTo(layer, index);
+			}
+			assertEquals(expected, cursor);
+			checkSame(cursor, store);
+		}
+		assertEquals(new NodeCursor<String, String>(store, LAYERS, 0), root);
+	}
+
+	/** A copy moves independently of the original, and moveTo() carries the position and index over. */
+	@Test
+	public void testCopyAndMoveTo() {
+		ArrayStore<String, String> store = new ArrayStore<String, String>();
+		NodeCursor<String, String> a = new NodeCursor<String, String>(store, 3, 16);
+		a.computeIndex();
+		NodeCursor<String, String> b = a.copy();
+		assertEquals(a, b);
+		assertNotSame(a, b);
+		b.moveToRight().moveToLeft();
+		checkSame(b, store);
+		assertEquals(new NodeCursor<String, String>(store, 3, 16), a);
+		assertEquals(new NodeCursor<String, String>(store, 1, 20), b);
+		checkSame(a, store);
+
+		a.moveTo(b);
+		assertEquals(b, a);
+		checkSame(a, store);
+		b.moveToParent().moveToParent();
+		assertEquals(new NodeCursor<String, String>(store, 1, 20), a);
+		assertEquals(new NodeCursor<String, String>(store, 3, 16), b);
+		checkSame(b, store);
+	}
+}